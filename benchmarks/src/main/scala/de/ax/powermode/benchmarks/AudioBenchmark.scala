@@ -0,0 +1,63 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.power.sound.{MusicPipeline, PcmRing}
+import javazoom.jl.player.HackyJavaSoundAudioDevice
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+
+/**
+  * The per chunk work of the audio thread for chunks of `samples`
+  * samples: moving them through the ring, mixing them in with the music's
+  * gain ramp and converting the result to bytes for the line.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Array("-Djava.awt.headless=true"))
+class AudioBenchmark {
+  @Param(Array("256", "4096"))
+  var samples: Int = _
+
+  private class Device extends HackyJavaSoundAudioDevice {
+    def convert(buffer: Array[Short], length: Int): Array[Byte] =
+      toByteArray(buffer, 0, length)
+  }
+
+  private val device = new Device
+  private var buffer: Array[Short] = _
+  private var mix: Array[Int] = _
+  private var ring: PcmRing = _
+  private var gain = 0f
+
+  @Setup
+  def setup(): Unit = {
+    val random = new scala.util.Random(42)
+    buffer = Array.fill(samples)(random.nextInt().toShort)
+    mix = new Array[Int](samples)
+    ring = new PcmRing(samples * 4)
+  }
+
+  @Benchmark
+  def mixRamped(): Array[Int] = {
+    // a new gain every chunk, so that every chunk is ramped
+    val previous = gain
+    gain = 1.5f - gain
+    java.util.Arrays.fill(mix, 0)
+    MusicPipeline.mixRamped(buffer, samples, mix, previous, gain)
+    mix
+  }
+
+  @Benchmark
+  def toByteArray(): Array[Byte] = {
+    device.convert(buffer, samples)
+  }
+
+  @Benchmark
+  def ringPutTake(): Int = {
+    ring.put(buffer, 0, samples)
+    ring.take(buffer, 0, samples)
+  }
+}
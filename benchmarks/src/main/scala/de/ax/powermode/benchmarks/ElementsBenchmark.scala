@@ -0,0 +1,95 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.power.PowerRandom
+import de.ax.powermode.power.management.ElementOfPowerContainer
+import org.openjdk.jmh.annotations._
+
+import java.awt.Graphics2D
+import java.util.concurrent.TimeUnit
+
+/**
+  * One frame of an editor's effects with `sparks` sparks and `flames`
+  * flames: [[ElementOfPowerContainer.updateElementsOfPower]] on the update
+  * thread's side and painting the container on the EDT's side, onto an
+  * offscreen canvas. The scene is spawned through the container the way
+  * typing does, as in [[Replay]].
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Array("-Djava.awt.headless=true"))
+class ElementsBenchmark {
+  @Param(Array("100", "1000", "10000"))
+  var sparks: Int = _
+
+  @Param(Array("2", "20", "200"))
+  var flames: Int = _
+
+  private val width = 1600
+  private val height = 1000
+  // long enough to outlive every iteration
+  private val life = TimeUnit.HOURS.toMillis(1).toInt
+  // sparks per requested spawn, with the heatup at its maximum
+  private val sparksPerSpawn = 10
+  // a spawn adds two flames
+  private val flamesPerSpawn = 2
+  // requests the container spawns per frame at full quality
+  private val spawnsPerFrame = 32
+
+  private var container: ElementOfPowerContainer = _
+  private var graphics: Graphics2D = _
+
+  @Setup(Level.Trial)
+  def setupTrial(): Unit = {
+    val powerMode = Headless.powerMode
+    powerMode.setShakeEnabled(false)
+    powerMode.setSparkLife(life)
+    powerMode.setFlameLife(life)
+    powerMode.setSparkCount(sparksPerSpawn - 1)
+    // fully heated up, so that every spawn is as large as it gets
+    powerMode.rvf = 1.0
+    graphics = Headless.canvas(width, height).createGraphics()
+  }
+
+  // every iteration starts over, so that it measures the same scene
+  @Setup(Level.Iteration)
+  def setup(): Unit = {
+    val powerMode = Headless.powerMode
+    PowerRandom.setSeed(42)
+    container = new ElementOfPowerContainer(Headless.editor(width, height))
+    powerMode.setFlamesEnabled(false)
+    spawn(sparks / sparksPerSpawn)
+    powerMode.setFlamesEnabled(true)
+    powerMode.setSparksEnabled(false)
+    spawn(flames / flamesPerSpawn)
+    powerMode.setSparksEnabled(true)
+  }
+
+  private def spawn(requests: Int): Unit = {
+    for (i <- 0 until requests) {
+      container.requestSpawn(PowerRandom.nextInt(width),
+                             PowerRandom.nextInt(height))
+      if ((i + 1) % spawnsPerFrame == 0) {
+        container.updateElementsOfPower()
+      }
+    }
+    container.updateElementsOfPower()
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    graphics.dispose()
+  }
+
+  @Benchmark
+  def update(): Unit = {
+    container.updateElementsOfPower()
+  }
+
+  @Benchmark
+  def paint(): Unit = {
+    container.paint(graphics)
+  }
+}
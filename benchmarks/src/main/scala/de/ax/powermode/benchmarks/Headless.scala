@@ -0,0 +1,67 @@
+package de.ax.powermode.benchmarks
+
+import com.intellij.openapi.editor.Editor
+import de.ax.powermode.PowerMode
+
+import java.awt.Rectangle
+import java.awt.image.BufferedImage
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import javax.swing.{JComponent, JPanel}
+
+/**
+  * Runs parts of the plugin without an IDE: a [[PowerMode]] with default
+  * settings, an editor that does nothing and offscreen canvases.
+  */
+object Headless {
+  System.setProperty("java.awt.headless", "true")
+
+  lazy val powerMode: PowerMode = {
+    val powerMode = new PowerMode
+    PowerMode.setInstance(powerMode)
+    powerMode
+  }
+
+  def canvas(width: Int, height: Int): BufferedImage =
+    new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE)
+
+  /**
+    * An editor of `width` x `height` pixels, scrolled to the top. Every
+    * method returns a neutral value: zero, false, the editor's component or
+    * area, another neutral object for interfaces, or null.
+    */
+  def editor(width: Int, height: Int): Editor = {
+    val component = new JPanel()
+    component.setSize(width, height)
+    neutral(classOf[Editor], component)
+  }
+
+  private def neutral[T](c: Class[T], component: JComponent): T = {
+    val handler: InvocationHandler = (proxy: AnyRef,
+                                      method: Method,
+                                      args: Array[AnyRef]) =>
+      method.getName match {
+        case "equals"   => java.lang.Boolean.valueOf(proxy eq args(0))
+        case "hashCode" => Integer.valueOf(System.identityHashCode(proxy))
+        case "toString" => s"headless ${c.getSimpleName}"
+        case _          => neutralValue(method.getReturnType, component)
+      }
+    Proxy
+      .newProxyInstance(getClass.getClassLoader, Array[Class[_]](c), handler)
+      .asInstanceOf[T]
+  }
+
+  private def neutralValue(t: Class[_], component: JComponent): AnyRef = {
+    if (t == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE
+    else if (t == Integer.TYPE) Integer.valueOf(0)
+    else if (t == java.lang.Long.TYPE) java.lang.Long.valueOf(0)
+    else if (t == java.lang.Float.TYPE) java.lang.Float.valueOf(0)
+    else if (t == java.lang.Double.TYPE) java.lang.Double.valueOf(0)
+    else if (t == java.lang.Short.TYPE) java.lang.Short.valueOf(0.toShort)
+    else if (t == java.lang.Byte.TYPE) java.lang.Byte.valueOf(0.toByte)
+    else if (t == Character.TYPE) Character.valueOf(0.toChar)
+    else if (t.isAssignableFrom(component.getClass)) component
+    else if (t == classOf[Rectangle]) component.getBounds()
+    else if (t.isInterface) neutral(t, component).asInstanceOf[AnyRef]
+    else null
+  }
+}
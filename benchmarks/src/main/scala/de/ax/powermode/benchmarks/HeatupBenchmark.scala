@@ -0,0 +1,44 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.PowerMode
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+
+/**
+  * Heatup bookkeeping of every frame, with `keys` keystrokes in the
+  * heatup window.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Array("-Djava.awt.headless=true"))
+class HeatupBenchmark {
+  @Param(Array("10", "100", "1000", "10000"))
+  var keys: Int = _
+
+  private var powerMode: PowerMode = _
+
+  @Setup(Level.Iteration)
+  def setup(): Unit = {
+    powerMode = Headless.powerMode
+    powerMode.lastKeys.clear()
+    // stamped ahead, so that no keystroke expires during the iteration
+    val stamp = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)
+    for (i <- 0 until keys) {
+      powerMode.lastKeys.add(stamp + i, 1.0)
+    }
+  }
+
+  @Benchmark
+  def reduceHeatup(): Unit = {
+    powerMode.reduceHeatup
+  }
+
+  @Benchmark
+  def rawTimeFactorFromKeyStrokes(): Double = {
+    powerMode.rawTimeFactorFromKeyStrokes
+  }
+}
@@ -0,0 +1,49 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.{Animation, ImageUtil, PowerMode}
+import org.openjdk.jmh.annotations._
+
+import java.awt.image.BufferedImage
+import java.util.concurrent.TimeUnit
+
+/**
+  * Looking up the flame animation and its frames, as every flame does on
+  * every frame, with all frames decoded.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Array("-Djava.awt.headless=true"))
+class ImageBenchmark {
+  private var powerMode: PowerMode = _
+  private var animation: Animation = _
+  private var index = 0
+
+  @Setup
+  def setup(): Unit = {
+    powerMode = Headless.powerMode
+    animation = ImageUtil.animationForPath(powerMode.flameImageFolder)
+    // wait for the frames decoded in the background
+    val deadline = System.currentTimeMillis() + 30000
+    def decoded = {
+      (0 until animation.size).foreach(animation.frame(_, powerMode.maxFlameSize))
+      animation.isLoaded(powerMode.maxFlameSize)
+    }
+    while (!decoded && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50)
+    }
+  }
+
+  @Benchmark
+  def animationForPath(): Animation = {
+    ImageUtil.animationForPath(powerMode.flameImageFolder)
+  }
+
+  @Benchmark
+  def frame(): BufferedImage = {
+    index += 1
+    animation.frame(index, powerMode.maxFlameSize)
+  }
+}
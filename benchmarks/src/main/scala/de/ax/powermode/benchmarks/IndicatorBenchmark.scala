@@ -0,0 +1,61 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.power.element.{ElementFrames, PowerIndicator}
+import org.openjdk.jmh.annotations._
+
+import java.awt.Graphics2D
+import java.util.concurrent.TimeUnit
+
+/**
+  * Painting the power indicator, once with its cached bitmap and once
+  * with a new keystroke before every paint.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Array("-Djava.awt.headless=true"))
+class IndicatorBenchmark {
+  private var indicator: PowerIndicator = _
+  private var graphics: Graphics2D = _
+  private val frames = new ElementFrames()
+
+  @Setup
+  def setup(): Unit = {
+    Headless.powerMode
+    graphics = Headless.canvas(1600, 1000).createGraphics()
+    indicator = PowerIndicator(1480f,
+                               880f,
+                               100f,
+                               100f,
+                               1000L)
+    indicator.update(1f)
+    publish()
+  }
+
+  private def publish(): Unit = {
+    val frame = frames.back
+    frame.clear()
+    indicator.draw(frame, 0, 0)
+    frames.publish()
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    graphics.dispose()
+  }
+
+  @Benchmark
+  def render(): Unit = {
+    frames.acquire().render(graphics, 0, 0)
+  }
+
+  @Benchmark
+  def keyStrokeAndRender(): Unit = {
+    indicator.keyStroke(1480f, 880f)
+    indicator.update(1f)
+    publish()
+    frames.acquire().render(graphics, 0, 0)
+  }
+}
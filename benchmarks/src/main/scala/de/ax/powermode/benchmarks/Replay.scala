@@ -0,0 +1,236 @@
+package de.ax.powermode.benchmarks
+
+import de.ax.powermode.metrics.{Histogram, PowerMetrics}
+import de.ax.powermode.power.PowerRandom
+import de.ax.powermode.power.management.{
+  ElementOfPowerContainer,
+  QualityGovernor
+}
+import de.ax.powermode.recording.InputLog
+import de.ax.powermode.recording.InputLog._
+
+import java.awt.Point
+import java.io.{BufferedInputStream, File, FileInputStream}
+import java.lang.management.ManagementFactory
+import java.util.concurrent.TimeUnit
+import javax.swing.KeyStroke
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+/**
+  * Replays an input recording against a headless editor, and reports frame
+  * times, element counts and allocations, so that plugin versions can be
+  * compared on the same workload.
+  *
+  * {{{
+  * sbt "replay <recording.pmil> [--speed <factor>] [--seed <seed>]"
+  * }}}
+  *
+  * Events drive the heatup, the spawns and the BAMs the way the plugin's
+  * listeners do, at the recorded pace divided by `speed`. Frames are
+  * updated and painted on the replaying thread at the configured frame
+  * rate, with all effects drawn from a [[PowerRandom]] seeded with `seed`.
+  */
+object Replay {
+  private val width = 1600
+  private val height = 1000
+  private val lineHeight = 18
+  private val charWidth = 8
+  private val columns = 120
+  // how long the BAM waits for the document change to settle
+  private val bamDelayMillis = 300
+
+  def main(args: Array[String]): Unit = {
+    var file = Option.empty[File]
+    var speed = 1.0
+    var seed = 42L
+    val options = args.iterator
+    while (options.hasNext) {
+      options.next() match {
+        case "--speed" => speed = options.next().toDouble
+        case "--seed"  => seed = options.next().toLong
+        case path      => file = Some(new File(path))
+      }
+    }
+    file match {
+      case Some(f) =>
+        val in = new BufferedInputStream(new FileInputStream(f))
+        val recording =
+          try {
+            InputLog.read(in)
+          } finally {
+            in.close()
+          }
+        new Replay(recording, speed, seed).run()
+        System.exit(0)
+      case None =>
+        System.err.println(
+          "usage: Replay <recording.pmil> [--speed <factor>] [--seed <seed>]")
+        System.exit(1)
+    }
+  }
+}
+
+class Replay(recording: Recording, speed: Double, seed: Long) {
+  import Replay._
+
+  private val powerMode = Headless.powerMode
+  private val threads = ManagementFactory.getThreadMXBean
+    .asInstanceOf[com.sun.management.ThreadMXBean]
+  // BAMs waiting for their delay, as the time they are due and their width
+  private val bams = mutable.Queue.empty[(Long, Double, Int)]
+  private var line = 0
+  private var column = 0
+
+  def run(): Unit = {
+    PowerRandom.setSeed(seed)
+    // shakes are drawn on the EDT, which would interleave with the seeded
+    // random numbers of the replaying thread
+    powerMode.setShakeEnabled(false)
+    powerMode.lastKeys.clear()
+    Seq(PowerMetrics.updateTick, PowerMetrics.paint).foreach(_.reset())
+    PowerMetrics.spawns.reset()
+    PowerMetrics.droppedSpawns.reset()
+
+    val container = new ElementOfPowerContainer(Headless.editor(width, height))
+    val graphics = Headless.canvas(width, height).createGraphics()
+    val events = recording.events
+    val thread = Thread.currentThread().getId
+    val gcs = ManagementFactory.getGarbageCollectorMXBeans.asScala
+    val gcCountBefore = gcs.map(_.getCollectionCount).sum
+    val gcMillisBefore = gcs.map(_.getCollectionTime).sum
+    var allocated = 0L
+    var frames = 0L
+    var elementFrames = 0L
+    var peakElements = Map.empty[String, Int]
+    var next = 0
+    val started = System.nanoTime()
+    var frameDue = started
+
+    while (next < events.size || bams.nonEmpty || container.isAnimating ||
+           !powerMode.isHeatupSettled) {
+      val now =
+        (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) * speed).toLong
+      while (next < events.size && events(next).time <= now) {
+        replay(events(next), container)
+        next += 1
+      }
+      while (bams.nonEmpty && bams.head._1 <= now) {
+        val (_, bamWidth, carets) = bams.dequeue()
+        bam(bamWidth, carets, container)
+      }
+
+      val allocatedBefore = threads.getThreadAllocatedBytes(thread)
+      powerMode.reduceHeatup
+      val updateStarted = System.nanoTime()
+      container.updateElementsOfPower()
+      val updateNanos = System.nanoTime() - updateStarted
+      PowerMetrics.updateTick.record(updateNanos)
+      QualityGovernor.endFrame(updateNanos)
+      container.paint(graphics)
+      allocated += threads.getThreadAllocatedBytes(thread) - allocatedBefore
+      frames += 1
+
+      val counts = container.elementCounts
+      elementFrames += counts.values.sum
+      peakElements = (peakElements.keySet ++ counts.keySet).map { kind =>
+        kind -> math.max(peakElements.getOrElse(kind, 0),
+                         counts.getOrElse(kind, 0))
+      }.toMap
+
+      frameDue += (TimeUnit.SECONDS.toNanos(1) /
+        (powerMode.frameRate.toHertz * QualityGovernor.quality)).toLong
+      val wait = frameDue - System.nanoTime()
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait)
+      } else {
+        frameDue = System.nanoTime()
+      }
+    }
+
+    val seconds = (System.nanoTime() - started) / 1e9
+    graphics.dispose()
+    def timing(name: String, h: Histogram): String =
+      f"$name%-8s p50 ${h.percentile(0.5) / 1000.0}%8.0fµs" +
+        f"  p99 ${h.percentile(0.99) / 1000.0}%8.0fµs" +
+        f"  max ${h.max / 1000.0}%8.0fµs"
+    val report = Seq(
+      f"events   ${events.size} in $seconds%.1fs at speed $speed, seed $seed",
+      s"frames   $frames",
+      timing("update", PowerMetrics.updateTick),
+      timing("paint", PowerMetrics.paint),
+      s"spawns   ${PowerMetrics.spawns.sum()}, dropped ${PowerMetrics.droppedSpawns.sum()}",
+      f"elements ${elementFrames.toDouble / math.max(frames, 1)}%.1f per frame, peak " +
+        peakElements.toSeq.sorted.map { case (k, v) => s"$k $v" }.mkString(", "),
+      f"alloc    ${allocated / 1024.0 / 1024}%.1fMB, ${allocated / math.max(frames, 1) / 1024.0}%.1fKB per frame",
+      s"gc       ${gcs.map(_.getCollectionCount).sum - gcCountBefore} collections, " +
+        s"${gcs.map(_.getCollectionTime).sum - gcMillisBefore}ms"
+    )
+    report.foreach(println)
+  }
+
+  private def replay(event: Event, container: ElementOfPowerContainer): Unit = {
+    event match {
+      case Typed(_, char, carets) =>
+        powerMode.myCaretListener.caretCount.set(math.max(carets, 1))
+        powerMode.increaseHeatup()
+        if (powerMode.powerIndicatorEnabled) {
+          container.requestIndicator()
+        }
+        if (!powerMode.caretAction) {
+          (0 until math.max(carets, 1)).foreach { caret =>
+            val p = caretPosition(caret)
+            container.requestSpawn(p.x, p.y)
+          }
+        }
+        if (char == '\n') {
+          line += 1
+          column = 0
+        } else {
+          column = (column + 1) % columns
+        }
+      case Hotkey(_, keyCode, modifiers) =>
+        powerMode.increaseHeatup(
+          keyStroke = Some(KeyStroke.getKeyStroke(keyCode, modifiers)))
+        if (powerMode.powerIndicatorEnabled) {
+          container.requestIndicator()
+        }
+      case DocumentChange(time,
+                          inserted,
+                          removed,
+                          insertedLines,
+                          removedLines,
+                          longestLine,
+                          carets) =>
+        line += insertedLines - removedLines
+        // the conditions of ElementOfPowerContainer.initializeCaretBam
+        if (powerMode.isBamEnabled &&
+            (inserted > 100 || removed > 100 ||
+            insertedLines > 1 || removedLines > 1)) {
+          bams.enqueue(
+            (time + bamDelayMillis,
+             longestLine / 2.0 * lineHeight,
+             math.max(carets, 1)))
+        }
+    }
+  }
+
+  // as ElementOfPowerContainer.performCaretBam, for carets without selection
+  private def bam(bamWidth: Double,
+                  carets: Int,
+                  container: ElementOfPowerContainer): Unit = {
+    (0 until carets).foreach { caret =>
+      val p = caretPosition(caret)
+      container.initializeAnimation(p,
+                                    new Point(math.min(0, p.x), math.min(0, p.y)),
+                                    bamWidth)
+    }
+  }
+
+  // carets three lines apart, following what was typed
+  private def caretPosition(caret: Int): Point = {
+    val rows = height / lineHeight
+    new Point(column * charWidth,
+              Math.floorMod(line + caret * 3, rows) * lineHeight)
+  }
+}
@@ -87,6 +87,13 @@ public class PowerModeConfigurableUI implements ConfigurableUi<PowerMode> {
     private JSlider minVolume;
     private JLabel maxVolumeValue;
     private JSlider maxVolume;
+    private JCheckBox soundEffectsEnabled;
+    private JLabel soundEffectsVolumeValue;
+    private JSlider soundEffectsVolume;
+    private JCheckBox qualityGovernorEnabled;
+    private JLabel frameBudgetMillisValue;
+    private JSlider frameBudgetMillis;
+    private JCheckBox debugOverlayEnabled;
 
 
     public PowerModeConfigurableUI(PowerMode powerMode) {
@@ -141,6 +148,14 @@ public class PowerModeConfigurableUI implements ConfigurableUi<PowerMode> {
         initValues(powerMode.getMinVolume(), minVolume, minVolumeValue, slider -> powerMode.setMinVolume(slider.getValue()));
         initValues(powerMode.getMaxVolume(), maxVolume, maxVolumeValue, slider -> powerMode.setMaxVolume(slider.getValue()));
         bindSlieders(minVolume, maxVolume);
+        soundEffectsEnabled.setSelected(powerMode.getIsSoundEffectsEnabled());
+        soundEffectsEnabled.addChangeListener(e -> powerMode.setIsSoundEffectsEnabled(soundEffectsEnabled.isSelected()));
+        initValues(powerMode.getSoundEffectsVolume(), soundEffectsVolume, soundEffectsVolumeValue, slider -> powerMode.setSoundEffectsVolume(slider.getValue()));
+        qualityGovernorEnabled.setSelected(powerMode.getIsQualityGovernorEnabled());
+        qualityGovernorEnabled.addChangeListener(e -> powerMode.setIsQualityGovernorEnabled(qualityGovernorEnabled.isSelected()));
+        initValues(powerMode.getFrameBudgetMillis(), frameBudgetMillis, frameBudgetMillisValue, slider -> powerMode.setFrameBudgetMillis(slider.getValue()));
+        debugOverlayEnabled.setSelected(powerMode.isDebugOverlayEnabled());
+        debugOverlayEnabled.addChangeListener(e -> powerMode.setDebugOverlayEnabled(debugOverlayEnabled.isSelected()));
         initValues(powerMode.getHeatup(), heatup, heatupValue, slider -> powerMode.setHeatup(slider.getValue()));
         initValues(powerMode.getHeatupTime(), heatupTime, heatupTimeValue, slider -> powerMode.setHeatupTime(slider.getValue()));
         initValues(powerMode.getHeatupThreshold(), heatupThreshold, heatupThresholdValue, slider -> powerMode.setHeatupThreshold(slider.getValue()));
@@ -328,7 +343,7 @@ public class PowerModeConfigurableUI implements ConfigurableUi<PowerMode> {
         scrollPane1.setEnabled(true);
         panel1.add(scrollPane1, new GridConstraints(0, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_BOTH, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
         final JPanel panel2 = new JPanel();
-        panel2.setLayout(new GridLayoutManager(19, 3, new Insets(0, 0, 0, 0), -1, -1));
+        panel2.setLayout(new GridLayoutManager(24, 3, new Insets(0, 0, 0, 0), -1, -1));
         scrollPane1.setViewportView(panel2);
         final JLabel label1 = new JLabel();
         label1.setText("framerate");
@@ -463,6 +478,39 @@ public class PowerModeConfigurableUI implements ConfigurableUi<PowerMode> {
         final JLabel label12 = new JLabel();
         label12.setText("music folder:");
         panel2.add(label12, new GridConstraints(8, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        soundEffectsEnabled = new JCheckBox();
+        soundEffectsEnabled.setText("SOUND EFFECTS!");
+        soundEffectsEnabled.setToolTipText("clicks while typing, a hit on every BAM! and a whoosh when the flames flare up");
+        panel2.add(soundEffectsEnabled, new GridConstraints(19, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final JLabel label26 = new JLabel();
+        label26.setText("sound effects volume %");
+        label26.setToolTipText("volume of the sound effects");
+        panel2.add(label26, new GridConstraints(20, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, new Dimension(176, 15), null, 0, false));
+        soundEffectsVolumeValue = new JLabel();
+        soundEffectsVolumeValue.setText("Label");
+        panel2.add(soundEffectsVolumeValue, new GridConstraints(20, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        soundEffectsVolume = new JSlider();
+        soundEffectsVolume.setMaximum(100);
+        panel2.add(soundEffectsVolume, new GridConstraints(20, 2, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        qualityGovernorEnabled = new JCheckBox();
+        qualityGovernorEnabled.setText("QUALITY GOVERNOR");
+        qualityGovernorEnabled.setToolTipText("fewer sparks, smaller flames and a lower frame rate while frames take longer than the frame budget");
+        panel2.add(qualityGovernorEnabled, new GridConstraints(21, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final JLabel label27 = new JLabel();
+        label27.setText("frame budget ms");
+        label27.setToolTipText("time a frame may take before the quality governor lowers the detail");
+        panel2.add(label27, new GridConstraints(22, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, new Dimension(176, 15), null, 0, false));
+        frameBudgetMillisValue = new JLabel();
+        frameBudgetMillisValue.setText("Label");
+        panel2.add(frameBudgetMillisValue, new GridConstraints(22, 1, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        frameBudgetMillis = new JSlider();
+        frameBudgetMillis.setMaximum(16);
+        frameBudgetMillis.setMinimum(1);
+        panel2.add(frameBudgetMillis, new GridConstraints(22, 2, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        debugOverlayEnabled = new JCheckBox();
+        debugOverlayEnabled.setText("DEBUG OVERLAY");
+        debugOverlayEnabled.setToolTipText("shows update and paint timings, jitter, element counts and quality in the editor");
+        panel2.add(debugOverlayEnabled, new GridConstraints(23, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         final Spacer spacer1 = new Spacer();
         panel1.add(spacer1, new GridConstraints(1, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
         final JScrollPane scrollPane2 = new JScrollPane();
@@ -48,6 +48,21 @@ public class HackyJavaSoundAudioDevice extends AudioDeviceBase {
 
     public byte[] byteBuf = new byte[4096];
 
+    // requested size of the line's buffer, 0 for the line's default
+    private int bufferBytes = 0;
+
+    /**
+     * Sets the size of the line's buffer, which bounds the latency of
+     * everything written to it. Takes effect when the line is created.
+     */
+    public void setBufferSize(int bytes) {
+        bufferBytes = Math.max(0, bytes);
+    }
+
+    public int getBufferSize() {
+        return bufferBytes;
+    }
+
     protected void setAudioFormat(AudioFormat fmt0) {
         fmt = fmt0;
     }
@@ -92,7 +107,11 @@ public class HackyJavaSoundAudioDevice extends AudioDeviceBase {
             if (line instanceof SourceDataLine) {
                 source = (SourceDataLine) line;
                 //source.open(fmt, millisecondsToBytes(fmt, 2000));
-                source.open(fmt);
+                if (bufferBytes > 0) {
+                    source.open(fmt, bufferBytes);
+                } else {
+                    source.open(fmt);
+                }
                 /*
                 if (source.isControlSupported(FloatControl.Type.MASTER_GAIN))
                 {
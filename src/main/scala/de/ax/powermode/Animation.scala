@@ -0,0 +1,248 @@
+package de.ax.powermode
+
+import de.ax.powermode.ImageUtil.ImageSource
+import de.ax.powermode.cache.{AnimationAtlas, FrameStore}
+
+import java.awt.image.BufferedImage
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicIntegerArray}
+
+object Animation {
+  // frames decoded in the background ahead of the requested one
+  val decodeAhead = 8
+  // frame sizes kept per animation
+  private val maxSizes = 4
+
+  val empty = new Animation(IndexedSeq.empty, null)
+}
+
+/**
+  * The frames of one image folder. Frames are decoded on demand, downscaled
+  * to the largest size they are drawn at and kept in a [[FrameStore]], so
+  * large animations stream instead of staying resident.
+  *
+  * Animations read from disk are compiled into an [[AnimationAtlas]] per
+  * frame size in the background; once it exists, it is mapped when the
+  * animation is loaded and frames are read from it instead of being decoded.
+  */
+class Animation private[powermode] (sources: IndexedSeq[ImageSource],
+                                    store: FrameStore) {
+  private val failed = new AtomicIntegerArray(sources.size)
+  private val failedCount = new AtomicInteger()
+  // the frames per size they were requested at, newest size first
+  @volatile private var framesBySize = Array.empty[FrameStore.Frames]
+  // atlas per frame size, None while it is compiled or could not be opened
+  private val atlases = new ConcurrentHashMap[Integer, Option[AnimationAtlas]]()
+  @volatile private var released = false
+
+  private lazy val files: Option[IndexedSeq[File]] =
+    if (sources.nonEmpty && sources.forall(_.file.isDefined))
+      Some(sources.flatMap(_.file))
+    else None
+
+  def size: Int = sources.size
+
+  def isEmpty: Boolean = sources.isEmpty
+
+  def nonEmpty: Boolean = !isEmpty
+
+  /**
+    * Frame `index` (modulo size), fitting into `maxDimension`.
+    *
+    * A frame that is not decoded yet is decoded in the background and the
+    * nearest decoded frame before it is used meanwhile; only the first
+    * frame is decoded synchronously. Returns null if no frame could be
+    * decoded.
+    */
+  def frame(index: Int, maxDimension: Int): BufferedImage =
+    lookup(index, maxDimension, decodeFirst = true)
+
+  /**
+    * Like [[frame]], but never decodes on the calling thread: returns null
+    * until a frame was decoded in the background.
+    */
+  def residentFrame(index: Int, maxDimension: Int): BufferedImage =
+    lookup(index, maxDimension, decodeFirst = false)
+
+  private def lookup(index: Int,
+                     maxDimension: Int,
+                     decodeFirst: Boolean): BufferedImage = {
+    if (isEmpty) {
+      null
+    } else {
+      val i = Math.floorMod(index, size)
+      val frames = framesFor(maxDimension)
+      var image = store.get(frames, i)
+      if (!isLoaded(frames)) {
+        if (image == null && failed.get(i) == 0) {
+          if (decodeFirst && frames.resident == 0) {
+            image = store.getOrDecode(frames, i)(decode(i, maxDimension))
+          } else {
+            decodeAhead(frames, i)
+          }
+        }
+        var ahead = 1
+        while (ahead <= Animation.decodeAhead && ahead < size) {
+          decodeAhead(frames, (i + ahead) % size)
+          ahead += 1
+        }
+      }
+      if (image != null) image else nearest(frames, i)
+    }
+  }
+
+  /**
+    * Whether all frames that can be decoded are resident at `maxDimension`.
+    */
+  def isLoaded(maxDimension: Int): Boolean =
+    nonEmpty && isLoaded(framesFor(maxDimension))
+
+  /**
+    * Drops the decoded frames and unmaps the atlases, e.g. after the folder
+    * changed.
+    */
+  def release(): Unit = synchronized {
+    released = true
+    framesBySize.foreach(store.release)
+    framesBySize = Array.empty
+    atlases.values().forEach(_.foreach(_.close()))
+  }
+
+  private def isLoaded(frames: FrameStore.Frames): Boolean =
+    frames.resident + failedCount.get() >= size
+
+  // the closest resident frame before `i`, so that every caller falls back
+  // to a frame of its own position in the animation
+  private def nearest(frames: FrameStore.Frames, i: Int): BufferedImage = {
+    var image: BufferedImage = null
+    var back = 1
+    while (image == null && back < size) {
+      image = frames.image(Math.floorMod(i - back, size))
+      back += 1
+    }
+    image
+  }
+
+  private def framesFor(maxDimension: Int): FrameStore.Frames = {
+    val bySize = framesBySize
+    var i = 0
+    while (i < bySize.length && bySize(i).maxDimension != maxDimension) {
+      i += 1
+    }
+    if (i < bySize.length) {
+      bySize(i)
+    } else {
+      synchronized {
+        framesBySize.find(_.maxDimension == maxDimension).getOrElse {
+          val frames = store.frames(maxDimension, size)
+          // sizes that are not requested anymore, e.g. after the flame size
+          // was changed in the settings
+          framesBySize.drop(Animation.maxSizes - 1).foreach(store.release)
+          framesBySize = frames +: framesBySize.take(Animation.maxSizes - 1)
+          frames
+        }
+      }
+    }
+  }
+
+  private def decodeAhead(frames: FrameStore.Frames, i: Int): Unit = {
+    if (failed.get(i) == 0 && !frames.contains(i)) {
+      store.decodeAhead(frames, i)(decode(i, frames.maxDimension))
+    }
+  }
+
+  private def decode(i: Int, maxDimension: Int): BufferedImage = {
+    val decoded = atlas(maxDimension) match {
+      case Some(atlas) =>
+        val image = atlas.frame(i)
+        if (image == null && atlas.isClosed) {
+          // pruned meanwhile, open or compile it again later
+          atlases.remove(maxDimension, Some(atlas))
+          ImageUtil.decode(sources(i), maxDimension)
+        } else {
+          Option(image)
+        }
+      case None =>
+        ImageUtil.decode(sources(i), maxDimension)
+    }
+    decoded match {
+      case Some(image) =>
+        image
+      case None =>
+        if (failed.compareAndSet(i, 0, 1)) {
+          failedCount.incrementAndGet()
+        }
+        null
+    }
+  }
+
+  private def atlas(maxDimension: Int): Option[AnimationAtlas] = {
+    val atlas = atlases.get(maxDimension)
+    if (atlas != null) {
+      atlas
+    } else {
+      files.flatMap(openAtlas(_, maxDimension))
+    }
+  }
+
+  /**
+    * Maps the atlas if it exists, which is cheap, and otherwise compiles it
+    * in the background, leaving the frames to be decoded meanwhile.
+    */
+  private def openAtlas(files: IndexedSeq[File],
+                        maxDimension: Int): Option[AnimationAtlas] = {
+    try {
+      val file = AnimationAtlas.fileFor(files, maxDimension)
+      AnimationAtlas.open(file) match {
+        case opened @ Some(atlas) =>
+          val previous = atlases.putIfAbsent(maxDimension, opened)
+          if (previous == null ||
+              (previous.isEmpty && atlases.replace(maxDimension,
+                                                   previous,
+                                                   opened))) {
+            opened
+          } else {
+            // opened by another thread meanwhile
+            atlas.close()
+            Option(atlases.get(maxDimension)).flatten
+          }
+        case None =>
+          if (atlases.putIfAbsent(maxDimension, None) == null) {
+            ImageUtil.atlasCompiler.execute { () =>
+              compileAtlas(file, maxDimension).foreach { atlas =>
+                atlases.put(maxDimension, Some(atlas))
+                if (released) {
+                  atlas.close()
+                }
+              }
+            }
+          }
+          None
+      }
+    } catch {
+      case e: Exception =>
+        PowerMode.logger
+          .debug(s"could not open animation atlas: ${e.getMessage}", e)
+        atlases.putIfAbsent(maxDimension, None)
+        None
+    }
+  }
+
+  private def compileAtlas(file: File,
+                           maxDimension: Int): Option[AnimationAtlas] = {
+    try {
+      val written = AnimationAtlas.write(file, size, { i =>
+        val stored = framesFor(maxDimension).image(i)
+        if (stored != null) stored
+        else ImageUtil.decode(sources(i), maxDimension).orNull
+      })
+      if (written) AnimationAtlas.open(file) else None
+    } catch {
+      case e: Exception =>
+        PowerMode.logger
+          .debug(s"could not compile animation atlas: ${e.getMessage}", e)
+        None
+    }
+  }
+}
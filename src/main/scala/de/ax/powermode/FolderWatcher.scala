@@ -0,0 +1,84 @@
+package de.ax.powermode
+
+import java.io.File
+import java.nio.file.{
+  ClosedWatchServiceException,
+  FileSystems,
+  StandardWatchEventKinds,
+  WatchKey,
+  WatchService
+}
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+
+/**
+  * Notifies about changes in folders through a single shared
+  * [[java.nio.file.WatchService]] and a daemon thread, so that callers can
+  * cache folder contents instead of polling the file system.
+  */
+object FolderWatcher {
+  private val callbacks =
+    new ConcurrentHashMap[WatchKey, CopyOnWriteArrayList[() => Unit]]()
+
+  private lazy val watchService: WatchService = {
+    val ws = FileSystems.getDefault.newWatchService()
+    val thread = new Thread(() => dispatch(ws), "Power Mode II folder watcher")
+    thread.setDaemon(true)
+    thread.start()
+    ws
+  }
+
+  /**
+    * Calls `onChange` on the watcher thread whenever a file in `folder` is
+    * created, modified or deleted, or the folder itself goes away. Closing
+    * the returned registration stops the calls. Returns None if the folder
+    * can not be watched.
+    */
+  def watch(folder: File)(onChange: () => Unit): Option[AutoCloseable] = {
+    try {
+      val key = folder.toPath.register(watchService,
+                                       StandardWatchEventKinds.ENTRY_CREATE,
+                                       StandardWatchEventKinds.ENTRY_MODIFY,
+                                       StandardWatchEventKinds.ENTRY_DELETE)
+      // registering a folder again yields the same key
+      val keyCallbacks = callbacks.computeIfAbsent(
+        key,
+        _ => new CopyOnWriteArrayList[() => Unit]())
+      keyCallbacks.add(onChange)
+      Some(() => {
+        keyCallbacks.remove(onChange)
+        if (keyCallbacks.isEmpty && callbacks.remove(key, keyCallbacks)) {
+          key.cancel()
+        }
+      })
+    } catch {
+      case e: Exception =>
+        PowerMode.logger.debug(s"could not watch folder '$folder'", e)
+        None
+    }
+  }
+
+  private def dispatch(ws: WatchService): Unit = {
+    try {
+      while (true) {
+        val key = ws.take()
+        key.pollEvents()
+        val keyCallbacks = callbacks.get(key)
+        if (!key.reset()) {
+          callbacks.remove(key)
+        }
+        if (keyCallbacks != null) {
+          keyCallbacks.forEach { callback =>
+            try {
+              callback()
+            } catch {
+              case e: Throwable =>
+                PowerMode.logger.debug(e.getMessage, e)
+            }
+          }
+        }
+      }
+    } catch {
+      case _: InterruptedException | _: ClosedWatchServiceException =>
+    }
+  }
+}
@@ -1,126 +1,264 @@
 package de.ax.powermode
 
 import com.intellij.util.PathUtil
-import de.ax.powermode.cache.Cache
+import com.intellij.util.concurrency.AppExecutorUtil
+import de.ax.powermode.cache.FrameStore
 import de.ax.powermode.power.element.PowerFlame
 
 import java.awt.image.BufferedImage
-import java.io.{BufferedOutputStream, File, FileOutputStream, InputStream}
-import java.net.{URI, URL}
-import javax.imageio.{IIOException, ImageIO}
+import java.awt.{
+  AlphaComposite,
+  GraphicsEnvironment,
+  RenderingHints,
+  Transparency
+}
+import java.io.{BufferedInputStream, File, FileInputStream, InputStream}
+import java.util.concurrent.ConcurrentHashMap
+import javax.imageio.ImageIO
 import scala.util.{Failure, Success, Try}
 
 object ImageUtil {
-  def imagesForPath(folder: Option[File]): scala.List[BufferedImage] = {
-    val orElse = folder.getOrElse(new File("UNDEFINED"))
-    //logger.debug(s"imagesForPath $folder")
-    ImageUtil.listCache
-      .getOrUpdate(orElse) {
-        Some(folder.map(ImageUtil.images).toList.flatten.map(f => f()))
+  // animations, keyed by the configured folder (or file)
+  private val animations = new ConcurrentHashMap[File, Animation]()
+  // folders on disk that are already registered with the FolderWatcher
+  private val watchedFolders = ConcurrentHashMap.newKeySet[File]()
+  // bumped on every change in a watched folder, keyed by the folder, so a
+  // load that raced with a change does not cache a stale animation
+  private val changeCounts = new ConcurrentHashMap[File, java.lang.Long]()
+  // configured folders that did not exist, with the time to look again
+  private val missing = new ConcurrentHashMap[File, java.lang.Long]()
+  private val missingRetryMillis = 5000L
+
+  private[powermode] val frameStore = new FrameStore(
+    () => PowerMode.getInstance.getFrameCacheMegabytes * 1024L * 1024,
+    AppExecutorUtil
+      .createBoundedApplicationPoolExecutor("Power Mode II frame decoder", 1))
+
+  private[powermode] val atlasCompiler = AppExecutorUtil
+    .createBoundedApplicationPoolExecutor("Power Mode II atlas compiler", 1)
+
+  /**
+    * The largest dimension BAM frames are decoded at. BAMs are drawn up to
+    * the editor's size, but larger ones are scaled up from frames of this
+    * size, which keeps a BAM animation at a few MB instead of hundreds.
+    */
+  val maxBamDimension: Int = 512
+
+  /**
+    * The animation of `folder`. Folders on disk are listed once and reloaded
+    * only after the FolderWatcher reported a change in them; bundled images
+    * are never reloaded. Lookups of loaded animations do not touch the disk.
+    */
+  def animationForPath(folder: Option[File]): Animation = {
+    folder match {
+      case Some(f) =>
+        val animation = animations.get(f)
+        if (animation != null) {
+          animation
+        } else {
+          val retryAt = missing.get(f)
+          if (retryAt != null && System.currentTimeMillis() < retryAt) {
+            Animation.empty
+          } else {
+            load(f)
+          }
+        }
+      case None =>
+        Animation.empty
+    }
+  }
+
+  private def load(imagesPath: File): Animation = {
+    val folder = watchedFolder(imagesPath)
+    if (imagesPath.exists()) {
+      watch(folder)
+    }
+    val changeCount = changeCounts.getOrDefault(folder, 0L)
+    val loaded = new Animation(getImageSources(imagesPath).toVector, frameStore)
+    if (loaded.isEmpty && !imagesPath.exists()) {
+      // not created yet, or on a drive that is not mounted; nothing watches
+      // it, so look again in a while instead of caching the empty result
+      missing.put(imagesPath, System.currentTimeMillis() + missingRetryMillis)
+      loaded
+    } else {
+      missing.remove(imagesPath)
+      val previous = animations.putIfAbsent(imagesPath, loaded)
+      if (previous != null) {
+        previous
+      } else {
+        // a change since listing may have been reported before the put
+        if (changeCounts.getOrDefault(folder, 0L) != changeCount) {
+          animations.remove(imagesPath, loaded)
+        }
+        loaded
       }
-      .toList
-      .flatten
+    }
+  }
+
+  private def watchedFolder(imagesPath: File): File = {
+    if (imagesPath.isFile) imagesPath.getAbsoluteFile.getParentFile
+    else imagesPath.getAbsoluteFile
   }
 
-  val imageCache =
-    new Cache[URI, BufferedImage, Long](fname => new File(fname).lastModified(),
-                                        fname => !new File(fname).exists())
-
-  var lastUpdate = System.currentTimeMillis()
-
-  val listCache = new Cache[File, List[BufferedImage], File](
-    f => f,
-    f =>
-      if (System.currentTimeMillis() - 5000 > lastUpdate) {
-        lastUpdate = System.currentTimeMillis()
-        true
-      } else false)
-
-  def images(imagesPath: File): List[() => BufferedImage] = {
-    val imageUrls = getImageUrls(imagesPath)
-    getImagesCached(imageUrls).map(img => { () =>
-      ImageUtil.deepCopy(img)
-    })
+  private def watch(folder: File): Unit = {
+    if (watchedFolders.add(folder)) {
+      val watching = FolderWatcher.watch(folder) { () =>
+        changeCounts.merge(folder, 1L, (a, b) => a + b)
+        animations.keySet().forEach { path =>
+          val absolutePath = path.getAbsoluteFile
+          if (absolutePath == folder || absolutePath.getParentFile == folder) {
+            Option(animations.remove(path)).foreach(_.release())
+          }
+        }
+        // a deleted folder is no longer watched, register it again on reload
+        if (!folder.isDirectory) {
+          watchedFolders.remove(folder)
+        }
+      }
+      if (watching.isEmpty) {
+        watchedFolders.remove(folder)
+      }
+    }
   }
 
-  import java.awt.image.BufferedImage
+  /**
+    * A display compatible copy of `img`, see [[decode]].
+    */
+  private[powermode] def compatible(img: BufferedImage): BufferedImage =
+    draw(img, img.getWidth, img.getHeight)
 
-  def deepCopy(bi: BufferedImage): BufferedImage = {
-    val cm = bi.getColorModel
-    val isAlphaPremultiplied = cm.isAlphaPremultiplied
-    val raster = bi.copyData(null)
-    new BufferedImage(cm, raster, isAlphaPremultiplied, null)
+  private def compatibleImage(width: Int, height: Int): BufferedImage = {
+    if (GraphicsEnvironment.isHeadless) {
+      new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE)
+    } else {
+      GraphicsEnvironment.getLocalGraphicsEnvironment.getDefaultScreenDevice
+        .getDefaultConfiguration
+        .createCompatibleImage(width, height, Transparency.TRANSLUCENT)
+    }
   }
 
-  def getUrl(uri: URI): Try[URL] = Try {
-    uri.toURL
+  /**
+    * Decodes every frame of the configured flame and BAM animations at the
+    * size they are drawn at, starting from a pooled thread, so that the
+    * first keystroke and the first BAM render from memory.
+    */
+  def warmUp(powerMode: PowerMode): Unit = {
+    def decodeAll(animation: Animation, maxDimension: Int): Unit =
+      for (i <- 0 until animation.size) {
+        animation.frame(i, maxDimension)
+      }
+    AppExecutorUtil.getAppExecutorService.execute { () =>
+      try {
+        decodeAll(animationForPath(powerMode.flameImageFolder),
+                  powerMode.maxFlameSize)
+        decodeAll(animationForPath(powerMode.bamImageFolder), maxBamDimension)
+      } catch {
+        case e: Throwable =>
+          PowerMode.logger.debug(s"could not warm up images: ${e.getMessage}", e)
+      }
+    }
   }
 
-  private def getImagesCached(imageUrls: List[URI]) = {
-    imageUrls.flatMap(uri =>
-      imageCache.getOrUpdate(uri) {
-        val maybeImg = Try {
-          Option(ImageIO.read(uri.toURL))
-        }
+  /**
+    * An image file, bundled resource or file on disk.
+    */
+  private[powermode] case class ImageSource(name: String,
+                                            open: () => InputStream,
+                                            file: Option[File] = None)
+
+  private def fileSource(file: File): ImageSource =
+    ImageSource(file.getAbsolutePath,
+                () => new FileInputStream(file),
+                Some(file))
 
-        maybeImg match {
-          case Success(Some(img)) =>
-            val bufferedImage = new BufferedImage(img.getWidth,
-                                                  img.getHeight,
-                                                  BufferedImage.TYPE_INT_ARGB)
-            val graphics = bufferedImage.getGraphics
-            graphics.drawImage(img, 0, 0, null)
-            Some(bufferedImage)
-          case Failure(e) =>
-            e match {
-              case io: IIOException =>
-                PowerMode.logger
-                  .info(
-                    s"could not load image file! Please try to store your PowerMode " +
-                      s"Images/Animations in a different folder and restart the application! File not found: '$uri'!",
-                    e
-                  )
-              case ex =>
-                PowerMode.logger
-                  .info(
-                    s"could not load image file! Please try to store your PowerMode " +
-                      s"Images/Animations in a different folder and restart the application! File not found: '$uri'!",
-                    ex
-                  )
-            }
-            None
-          case Success(None) =>
-            PowerMode.logger
-              .info(s"could not load image from url '${uri.toURL}'")
-            None
+  /**
+    * Decodes `source` into a display compatible image, so Java2D can
+    * accelerate it, downscaled to fit into `maxDimension`. The image is
+    * shared by all elements and must not be drawn into.
+    */
+  private[powermode] def decode(source: ImageSource,
+                                maxDimension: Int): Option[BufferedImage] = {
+    val maybeImg = Try {
+      val stream = source.open()
+      if (stream == null) {
+        None
+      } else {
+        try {
+          Option(ImageIO.read(new BufferedInputStream(stream)))
+        } finally {
+          stream.close()
         }
-    })
+      }
+    }
+
+    maybeImg match {
+      case Success(Some(img)) =>
+        Some(fit(img, math.max(maxDimension, 1)))
+      case Failure(e) =>
+        PowerMode.logger
+          .info(
+            s"could not load image file! Please try to store your PowerMode " +
+              s"Images/Animations in a different folder and restart the application! File not found: '${source.name}'!",
+            e
+          )
+        None
+      case Success(None) =>
+        PowerMode.logger
+          .info(s"could not load image from '${source.name}'")
+        None
+    }
   }
 
-  private def getImageUrls(imagesPath: File): List[URI] = {
+  /**
+    * Copies `img` into a compatible image no larger than `maxDimension`,
+    * halving it step by step first so that large reductions stay smooth.
+    */
+  private def fit(img: BufferedImage, maxDimension: Int): BufferedImage = {
+    val scale =
+      math.min(1.0, maxDimension.toDouble / math.max(img.getWidth, img.getHeight))
+    val width = math.max(1, (img.getWidth * scale).round.toInt)
+    val height = math.max(1, (img.getHeight * scale).round.toInt)
+    var current = img
+    while (current.getWidth / 2 >= width && current.getHeight / 2 >= height) {
+      current = draw(current, current.getWidth / 2, current.getHeight / 2)
+    }
+    draw(current, width, height)
+  }
+
+  private def draw(img: BufferedImage,
+                   width: Int,
+                   height: Int): BufferedImage = {
+    val bufferedImage = compatibleImage(width, height)
+    val graphics = bufferedImage.createGraphics()
+    graphics.setComposite(AlphaComposite.Src)
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                              RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+    graphics.setRenderingHint(RenderingHints.KEY_RENDERING,
+                              RenderingHints.VALUE_RENDER_QUALITY)
+    graphics.drawImage(img, 0, 0, width, height, null)
+    graphics.dispose()
+    bufferedImage
+  }
+
+  private def getImageSources(imagesPath: File): List[ImageSource] = {
     try {
-      //logger.debug(s"FILE: $imagesPath")
-      val urls = if (imagesPath.exists()) {
+      if (imagesPath.exists()) {
         getFileImages(imagesPath)
       } else if (debugFolderExists(imagesPath)) {
-        getImageUrlsFromDebugDir(imagesPath)
+        getImagesFromDebugDir(imagesPath)
       } else {
-        getImageUrlsFromResources(imagesPath)
+        getImagesFromResources(imagesPath)
       }
-      //logger.debug(s"URLS: $urls")
-      urls
     } catch {
       case e: Throwable =>
         PowerMode.logger.debug(
-          s"info getting image urls from '${imagesPath}': ${e.getMessage}",
+          s"info getting images from '${imagesPath}': ${e.getMessage}",
           e)
         throw e
     }
   }
 
-  private def getFileImages(imagesPath: File): List[URI] = {
-    //logger.debug(s"LOADING FROM normal path: $imagesPath")
-
+  private def getFileImages(imagesPath: File): List[ImageSource] = {
     val files = if (imagesPath.isFile) {
       List(imagesPath)
     } else {
@@ -130,7 +268,7 @@ object ImageUtil {
         .flatten
         .filter(_.isFile)
     }
-    files.map(_.getAbsoluteFile.toURI)
+    files.map(f => fileSource(f.getAbsoluteFile))
   }
 
   private def debugFolderExists(imagesPath: File): Boolean = {
@@ -139,59 +277,36 @@ object ImageUtil {
     file.exists()
   }
 
-  private def getImageUrlsFromDebugDir(imagesPath: File): List[URI] = {
+  private def getImagesFromDebugDir(imagesPath: File): List[ImageSource] = {
     val file = new File(PathUtil.getJarPathForClass(classOf[PowerFlame]),
                         imagesPath.getPath)
-    //logger.debug(s"LOADING FROM exploded sandbox: $file")
     Option(file.listFiles())
       .map(_.toList)
       .toList
       .flatten
       .filter(_.isFile)
-      .map(_.toURI)
+      .map(fileSource)
   }
 
-  def writeBytes(data: LazyList[Byte], file: File) = {
-    val target = new BufferedOutputStream(new FileOutputStream(file))
-    try data.foreach(target.write(_))
-    finally target.close()
-  }
-
-  lazy val fireUrls = (1 to 25)
+  private val fireResources = (1 to 25)
     .map(i => if (i > 9) s"$i" else s"0$i")
-    .map { i =>
-      mkTmpImg(
-        classOf[PowerFlame].getResourceAsStream(
-          s"/fire/animated/256/fire1_ $i.png"))
-    }
+    .map(i => s"/fire/animated/256/fire1_ $i.png")
     .toList
 
-  lazy val bamUrls =
-    Option(classOf[PowerFlame].getResourceAsStream(s"/bam/bam.png"))
-      .map(mkTmpImg)
-      .toList
+  private val bamResources = List("/bam/bam.png")
 
-  private def getImageUrlsFromResources(imagesFolder: File): List[URI] = {
-    val loader = this.getClass().getClassLoader()
-    //logger.debug(s"LOADING FROM JAR: $imagesFolder")
-    val uRLs: List[URL] = if (imagesFolder.getPath.contains("fire")) {
-      fireUrls
+  /**
+    * Bundled images are read straight from the plugin class loader.
+    */
+  private def getImagesFromResources(imagesFolder: File): List[ImageSource] = {
+    val resources = if (imagesFolder.getPath.contains("fire")) {
+      fireResources
     } else if (imagesFolder.getPath.contains("bam")) {
-      bamUrls
+      bamResources
     } else {
-      None.toList
+      Nil
     }
-    uRLs.map(_.toURI)
-  }
-
-  private def mkTmpImg(stream: InputStream): URL = {
-    import java.io.File
-    val tempFile =
-      File.createTempFile(s"${System.currentTimeMillis()}_pmtempfile_", ".png")
-    tempFile.deleteOnExit()
-    writeBytes(
-      LazyList.continually(stream.read).takeWhile(_ != -1).map(_.toByte),
-      tempFile)
-    tempFile.toURI.toURL
+    resources.map(r =>
+      ImageSource(r, () => classOf[PowerFlame].getResourceAsStream(r)))
   }
 }
@@ -3,6 +3,8 @@ package de.ax.powermode
 import com.intellij.openapi.actionSystem.DataContext
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.actionSystem.TypedActionHandler
+import de.ax.powermode.power.sound.SoundEffects
+import de.ax.powermode.recording.InputRecorder
 
 import java.awt.Point
 import scala.jdk.CollectionConverters._
@@ -16,7 +18,9 @@ class MyTypedActionHandler(typedActionHandler: TypedActionHandler)
 
   def execute(editor: Editor, c: Char, dataContext: DataContext): Unit = {
     if (powerMode.isEnabled) {
+      InputRecorder.typed(c, editor.getCaretModel.getCaretCount)
       powerMode.increaseHeatup(dataContext = Option(dataContext))
+      SoundEffects.trigger(SoundEffects.Click)
       if (!powerMode.caretAction) {
         initializeAnimationByTypedAction(editor)
       }
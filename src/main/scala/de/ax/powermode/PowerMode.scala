@@ -34,9 +34,11 @@ import com.intellij.util.xmlb.XmlSerializerUtil
 import de.ax.powermode.PowerMode.logger
 import de.ax.powermode.power.color.ColorEdges
 import de.ax.powermode.power.management.ElementOfPowerContainerManager
-import org.apache.commons.math3.stat.regression.SimpleRegression
 import com.intellij.openapi.diagnostic.Logger
+import de.ax.powermode.power.heatup.{KeyStrokeWindow, SlopeWindow}
+import de.ax.powermode.metrics.PowerMetrics
 import de.ax.powermode.power.hotkeys.HotkeyHeatupListener
+import de.ax.powermode.recording.InputRecorder
 import org.jetbrains.annotations.Nullable
 import squants.Dimensionless
 import squants.DimensionlessConversions.{DimensionlessConversions, each}
@@ -79,6 +81,15 @@ object PowerMode {
     }
   }
 
+  /**
+    * Uses `powerMode` instead of the application service, to run parts of
+    * the plugin outside the IDE, e.g. in benchmarks.
+    */
+  private[powermode] def setInstance(powerMode: PowerMode): Unit =
+    synchronized {
+      instance = powerMode
+    }
+
   def obtainColorEdges(pm: PowerMode): ColorEdges = {
     import pm._
     val edges = new ColorEdges()
@@ -102,11 +113,10 @@ final class PowerMode
 
   override def dispose(): Unit = {
     maybeElementOfPowerContainerManager.foreach(_.dispose)
+    PowerMetrics.unregister()
+    InputRecorder.stop()
   }
 
-  type Timestamp = Time
-  type CaretCount = Int
-  type HeatupKey = (Option[KeyStroke], Timestamp, CaretCount)
   val mediaPlayerExists: Try[Class[_]] = Try {
     Class.forName("javax.sound.sampled.SourceDataLine")
   }
@@ -141,7 +151,7 @@ final class PowerMode
   var maxFlameSize: Int = 100
   var maxFlameLife: Time = 2000 milliseconds
   var heatupTimeMillis: Time = 10000 milliseconds
-  var lastKeys = List.empty[HeatupKey]
+  val lastKeys = new KeyStrokeWindow()
   var keyStrokesPerMinute: Frequency = 300 / 1.minutes
   var heatupFactor = 1.0
   var sparkLife = 3000
@@ -168,6 +178,15 @@ final class PowerMode
   var _isCustomBamImages: Boolean = false
   var customFlameImageFolder = Option.empty[File]
   var customBamImageFolder = Option.empty[File]
+  var frameCacheMegabytes: Int = 128
+  var pcmCacheEnabled: Boolean = false
+  var pcmCacheMegabytes: Int = 512
+  var soundEffectsEnabled: Boolean = false
+  var soundEffectsVolume: Int = 50
+  var qualityGovernorEnabled: Boolean = false
+  var frameBudgetMillis: Int = 4
+  var debugOverlayEnabled: Boolean = false
+  var inputRecordingEnabled: Boolean = false
   private var enabled: Boolean = true
   private var shakeEnabled: Boolean = false
 
@@ -196,38 +215,47 @@ final class PowerMode
       dataContext: Option[DataContext] = Option.empty[DataContext],
       keyStroke: Option[KeyStroke] = Option.empty[KeyStroke]): Unit = {
 
-    val currentTime = System.currentTimeMillis().milliseconds
-    lastKeys = (keyStroke, currentTime, myCaretListener.caretCount.get()) :: filterLastKeys(
-      currentTime)
+    val currentTime = System.currentTimeMillis()
+    filterLastKeys(currentTime)
+    lastKeys.add(currentTime,
+                 keyStrokeWeight(keyStroke, myCaretListener.caretCount.get()))
     dataContext.foreach(dc =>
       maybeElementOfPowerContainerManager.foreach(_.showIndicator(dc)))
+    wakeAnimation()
+  }
+
+  private def keyStrokeWeight(keyStroke: Option[KeyStroke],
+                              caretCount: Int): Double = {
+    keyStroke match {
+      case Some(ks) =>
+        val modifiers = Integer.bitCount(
+          ks.getModifiers & (InputEvent.CTRL_DOWN_MASK |
+            InputEvent.ALT_DOWN_MASK |
+            InputEvent.SHIFT_DOWN_MASK))
+        modifiers * hotkeyWeight.toEach * caretCount
+      case None => caretCount.toDouble
+    }
+  }
 
+  private def wakeAnimation(): Unit = {
+    maybeElementOfPowerContainerManager.foreach(_.wakeAnimation())
   }
 
-  var previousValues = List.empty[Double]
+  // smoothed raw value factors of the last second, newest first
+  private var previousValues = new SlopeWindow(0)
 
   def reduceHeatup: Unit = {
-    val ct = System.currentTimeMillis().milliseconds
-    lastKeys = filterLastKeys(ct)
+    filterLastKeys(System.currentTimeMillis())
     adjustValueFactor
   }
 
   private def adjustValueFactor: Unit = {
-    if (previousValues.size > frameRate.toHertz) {
-      previousValues = previousValues.dropRight(1)
+    val window = frameRate.toHertz.toInt
+    if (previousValues.capacity != window) {
+      previousValues = new SlopeWindow(window)
     }
     val unlimited = rawValueFactorUnlimited
-    val wouldValues = unlimited :: previousValues
-    val slope = if (wouldValues.size > 1) {
-      val s = new SimpleRegression()
-      wouldValues.zipWithIndex.foreach {
-        case (e, i) =>
-          s.addData(i, e)
-      }
-      s.getSlope
-    } else {
-      0
-    }
+    val slope = previousValues.slopeWith(unlimited)
     val maxSlope = 0.001
     val maxSlopeValue = 0.0005
     if (slope > maxSlope) {
@@ -237,11 +265,19 @@ final class PowerMode
     } else {
       rvf = unlimited
     }
-    previousValues ::= rvf
+    previousValues.push(rvf)
   }
 
-  private def filterLastKeys(currentTime: Time): List[HeatupKey] = {
-    lastKeys.filter(_._2 >= currentTime - heatupTimeMillis)
+  /**
+    * Whether heatup has fully decayed, so [[reduceHeatup]] would not change
+    * anything until the next key stroke.
+    */
+  def isHeatupSettled: Boolean = {
+    lastKeys.isEmpty && rvf == rawValueFactorUnlimited
+  }
+
+  private def filterLastKeys(currentTime: Long): Unit = {
+    lastKeys.expire(currentTime - heatupTimeMillis.toMilliseconds.toLong)
   }
   var rvf: Double = 0.0
   def rawValueFactor: Double = { rvf }
@@ -252,28 +288,18 @@ final class PowerMode
   }
 
   def rawTimeFactorFromKeyStrokes: Double = {
-    val tf = Try {
-      if (heatupTimeMillis < 1.seconds) {
-        1 ea
+    val heatupMillis = heatupTimeMillis.toMilliseconds
+    if (heatupMillis < 1000) {
+      1.0
+    } else {
+      val maxKeystrokesOverHeatupTime =
+        heatupMillis * keyStrokesPerMinute.toHertz / 1000
+      if (maxKeystrokesOverHeatupTime > 0) {
+        lastKeys.weightSum / maxKeystrokesOverHeatupTime
       } else {
-        val MaxKeystrokesOverHeatupTime
-          : Dimensionless = heatupTimeMillis * keyStrokesPerMinute
-        val vals: Seq[Dimensionless] = lastKeys.map {
-          case (Some(ks), _, caretCount) =>
-            val size = Seq(InputEvent.CTRL_DOWN_MASK,
-                           InputEvent.ALT_DOWN_MASK,
-                           InputEvent.SHIFT_DOWN_MASK)
-              .count(m => (ks.getModifiers & m) > 0)
-            (size * hotkeyWeight * caretCount)
-          case (_, _, caretCount) => 1.ea * caretCount
-        }
-
-        val keystrokesOverHeatupTime: Dimensionless = vals.foldLeft(0.ea)(_ + _)
-        val res = (keystrokesOverHeatupTime / MaxKeystrokesOverHeatupTime).ea
-        res
+        0.0
       }
-    }.getOrElse(0 ea)
-    tf.toEach
+    }
   }
 
   def valueFactor: Dimensionless = {
@@ -305,7 +331,8 @@ final class PowerMode
       typedAction
         .setupRawHandler(new MyTypedActionHandler(typedAction.getRawHandler))
     })
-    val l = new HotkeyHeatupListener
+    val l = new HotkeyHeatupListener(this)
+    wakeAnimation()
     PowerMode.logger.debug("initComponent done")
   }
 
@@ -323,6 +350,7 @@ final class PowerMode
 
   def setEnabled(enabled: Boolean): Unit = {
     this.enabled = enabled
+    wakeAnimation()
   }
 
   def isShakeEnabled: Boolean = {
@@ -333,6 +361,12 @@ final class PowerMode
     this.shakeEnabled = shakeEnabled
   }
 
+  def getFrameCacheMegabytes: Int = frameCacheMegabytes
+
+  def setFrameCacheMegabytes(frameCacheMegabytes: Int): Unit = {
+    this.frameCacheMegabytes = math.max(frameCacheMegabytes, 1)
+  }
+
   def getSparkCount: Int = sparkCount
 
   def setSparkCount(sparkCount: Int): Unit = {
@@ -490,6 +524,7 @@ final class PowerMode
 
   def setSoundsFolder(file: String): Unit = {
     soundsFolder = Option(new File(file))
+    wakeAnimation()
   }
 
   def getIsCaretAction: Boolean = {
@@ -504,6 +539,7 @@ final class PowerMode
 
   def setIsSoundsPlaying(isSoundsPlaying: Boolean): Unit = {
     this.isSoundsPlaying = isSoundsPlaying
+    wakeAnimation()
   }
 
   def getBamLife: Double = bamLife.toMilliseconds
@@ -534,6 +570,57 @@ final class PowerMode
     powerIndicatorEnabled = enabled
   }
 
+  def getIsPcmCacheEnabled: Boolean = pcmCacheEnabled
+
+  def setIsPcmCacheEnabled(enabled: Boolean): Unit = {
+    pcmCacheEnabled = enabled
+  }
+
+  def getPcmCacheMegabytes: Int = pcmCacheMegabytes
+
+  def setPcmCacheMegabytes(pcmCacheMegabytes: Int): Unit = {
+    this.pcmCacheMegabytes = math.max(pcmCacheMegabytes, 1)
+  }
+
+  def getIsSoundEffectsEnabled: Boolean = soundEffectsEnabled
+
+  def setIsSoundEffectsEnabled(enabled: Boolean): Unit = {
+    soundEffectsEnabled = enabled
+  }
+
+  def getSoundEffectsVolume: Int = soundEffectsVolume
+
+  def setSoundEffectsVolume(soundEffectsVolume: Int): Unit = {
+    this.soundEffectsVolume = math.max(math.min(soundEffectsVolume, 100), 0)
+  }
+
+  def getIsQualityGovernorEnabled: Boolean = qualityGovernorEnabled
+
+  def setIsQualityGovernorEnabled(enabled: Boolean): Unit = {
+    qualityGovernorEnabled = enabled
+  }
+
+  def getFrameBudgetMillis: Int = frameBudgetMillis
+
+  def setFrameBudgetMillis(frameBudgetMillis: Int): Unit = {
+    this.frameBudgetMillis = math.max(frameBudgetMillis, 1)
+  }
+
+  def isDebugOverlayEnabled: Boolean = debugOverlayEnabled
+
+  def setDebugOverlayEnabled(enabled: Boolean): Unit = {
+    debugOverlayEnabled = enabled
+  }
+
+  def getIsInputRecordingEnabled: Boolean = inputRecordingEnabled
+
+  def setIsInputRecordingEnabled(enabled: Boolean): Unit = {
+    inputRecordingEnabled = enabled
+    if (!enabled) {
+      InputRecorder.stop()
+    }
+  }
+
   def isCustomFlameImages: Boolean = _isCustomFlameImages
 
   def setCustomFlameImages(s: Boolean): Unit = {
@@ -2,6 +2,7 @@ package de.ax.powermode
 
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.startup.StartupActivity
+import de.ax.powermode.metrics.PowerMetrics
 
 import java.util
 object PowerModeStartup {
@@ -9,6 +10,8 @@ object PowerModeStartup {
     PowerMode.logger.debug(s"starting instance on out ${System.out.hashCode()}")
     val x = PowerMode.getInstance
     PowerMode.logger.debug(s"started instance ${x.hashCode()}")
+    ImageUtil.warmUp(x)
+    PowerMetrics.register()
   }
 }
 class PowerModeStartup extends com.intellij.ide.AppLifecycleListener {
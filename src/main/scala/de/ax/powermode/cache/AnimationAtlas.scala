@@ -0,0 +1,254 @@
+package de.ax.powermode.cache
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.util.io.ByteBufferUtil
+import de.ax.powermode.{ImageUtil, PowerMode}
+
+import java.awt.image.BufferedImage
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+  * Compiled animations on disk: one file per animation folder and frame
+  * size, holding the decoded and downscaled frames as premultiplied ARGB
+  * pixels plus a frame index, so that a cold start maps the file instead of
+  * decoding every image again.
+  *
+  * Layout, big endian: magic, frame count, then width, height and pixel
+  * offset of every frame, then the pixels. Frames that could not be decoded
+  * have a size of 0.
+  *
+  * An atlas stays mapped until it is closed. Files are unmapped before they
+  * are deleted, since Windows cannot delete a mapped file.
+  */
+object AnimationAtlas {
+  private val Magic = 0x504d4131 // PMA1
+  private val HeaderBytes = 8
+  private val IndexEntryBytes = 16
+  // atlases larger than this are not worth keeping on disk
+  val maxAtlasBytes: Long = 256L * 1024 * 1024
+  val maxDirectoryBytes: Long = 1024L * 1024 * 1024
+
+  private val opened = ConcurrentHashMap.newKeySet[AnimationAtlas]()
+
+  def directory: File =
+    new File(PathManager.getSystemPath, "power-mode/atlas")
+
+  /**
+    * The atlas file for the given frame files, named after a hash of their
+    * paths, modification times and sizes.
+    */
+  def fileFor(frames: Seq[File], maxDimension: Int): File = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    frames.foreach { f =>
+      digest.update(f.getAbsolutePath.getBytes("UTF-8"))
+      digest.update(
+        ByteBuffer
+          .allocate(16)
+          .putLong(f.lastModified())
+          .putLong(f.length())
+          .array())
+    }
+    digest.update(ByteBuffer.allocate(4).putInt(maxDimension).array())
+    val hash = digest.digest().take(16).map(b => f"$b%02x").mkString
+    new File(directory, s"$hash.atlas")
+  }
+
+  def open(file: File): Option[AnimationAtlas] = {
+    if (!file.isFile) {
+      None
+    } else {
+      try {
+        val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+        val buffer = try {
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        } finally {
+          channel.close()
+        }
+        try {
+          require(buffer.getInt(0) == Magic, s"not an atlas: $file")
+          val count = buffer.getInt(4)
+          val widths = new Array[Int](count)
+          val heights = new Array[Int](count)
+          val offsets = new Array[Long](count)
+          var i = 0
+          while (i < count) {
+            val entry = HeaderBytes + i * IndexEntryBytes
+            widths(i) = buffer.getInt(entry)
+            heights(i) = buffer.getInt(entry + 4)
+            offsets(i) = buffer.getLong(entry + 8)
+            require(
+              offsets(i) + widths(i).toLong * heights(i) * 4 <= buffer.capacity(),
+              s"truncated atlas: $file")
+            i += 1
+          }
+          file.setLastModified(System.currentTimeMillis())
+          val atlas = new AnimationAtlas(file, buffer, widths, heights, offsets)
+          opened.add(atlas)
+          Some(atlas)
+        } catch {
+          case e: Exception =>
+            ByteBufferUtil.cleanBuffer(buffer)
+            throw e
+        }
+      } catch {
+        case e: Exception =>
+          PowerMode.logger
+            .debug(s"could not open atlas '$file': ${e.getMessage}", e)
+          file.delete()
+          None
+      }
+    }
+  }
+
+  /**
+    * Writes `count` frames to `file`. The file is written next to its
+    * target and moved into place, so readers never see a partial atlas.
+    * Returns false if the frames exceed [[maxAtlasBytes]].
+    */
+  def write(file: File, count: Int, frame: Int => BufferedImage): Boolean = {
+    file.getParentFile.mkdirs()
+    val tmp = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+    try {
+      val channel = FileChannel.open(tmp.toPath, StandardOpenOption.WRITE)
+      val complete = try {
+        val index = ByteBuffer.allocate(HeaderBytes + count * IndexEntryBytes)
+        index.putInt(Magic).putInt(count)
+        var offset = index.capacity().toLong
+        var i = 0
+        while (i < count && offset <= maxAtlasBytes) {
+          val image = frame(i)
+          if (image == null) {
+            index.putInt(0).putInt(0).putLong(offset)
+          } else {
+            val pixels = premultipliedPixels(image)
+            val bytes = ByteBuffer.allocate(pixels.length * 4)
+            bytes.asIntBuffer().put(pixels)
+            writeFully(channel, bytes, offset)
+            index.putInt(image.getWidth).putInt(image.getHeight).putLong(offset)
+            offset += bytes.capacity()
+          }
+          i += 1
+        }
+        index.flip()
+        writeFully(channel, index, 0)
+        i == count && offset <= maxAtlasBytes
+      } finally {
+        channel.close()
+      }
+      if (complete) {
+        Files.move(tmp.toPath,
+                   file.toPath,
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE)
+        prune()
+      }
+      complete
+    } finally {
+      tmp.delete()
+    }
+  }
+
+  private def writeFully(channel: FileChannel,
+                         bytes: ByteBuffer,
+                         offset: Long): Unit = {
+    while (bytes.hasRemaining) {
+      channel.write(bytes, offset + bytes.position())
+    }
+  }
+
+  /**
+    * Deletes the least recently used atlases beyond [[maxDirectoryBytes]].
+    */
+  private def prune(): Unit = {
+    val atlases = Option(directory.listFiles())
+      .map(_.toSeq)
+      .getOrElse(Seq.empty)
+      .filter(_.getName.endsWith(".atlas"))
+      .sortBy(-_.lastModified())
+    var bytes = 0L
+    atlases.foreach { f =>
+      bytes += f.length()
+      if (bytes > maxDirectoryBytes) {
+        opened.forEach(atlas => if (atlas.file == f) atlas.close())
+        f.delete()
+      }
+    }
+  }
+
+  private def premultipliedPixels(image: BufferedImage): Array[Int] = {
+    val premultiplied =
+      if (image.getType == BufferedImage.TYPE_INT_ARGB_PRE) {
+        image
+      } else {
+        val copy = new BufferedImage(image.getWidth,
+                                     image.getHeight,
+                                     BufferedImage.TYPE_INT_ARGB_PRE)
+        val g = copy.createGraphics()
+        g.drawImage(image, 0, 0, null)
+        g.dispose()
+        copy
+      }
+    premultiplied.getRaster
+      .getDataElements(0, 0, image.getWidth, image.getHeight, null)
+      .asInstanceOf[Array[Int]]
+  }
+}
+
+class AnimationAtlas private (val file: File,
+                              buffer: MappedByteBuffer,
+                              widths: Array[Int],
+                              heights: Array[Int],
+                              offsets: Array[Long]) {
+  // guarded by this, so the buffer is never read after it was unmapped
+  private var closed = false
+
+  def size: Int = widths.length
+
+  def isClosed: Boolean = synchronized { closed }
+
+  /**
+    * Frame `i` as a display compatible image, or null if the frame could
+    * not be decoded when the atlas was compiled or the atlas is closed.
+    */
+  def frame(i: Int): BufferedImage = {
+    val width = widths(i)
+    val height = heights(i)
+    if (width == 0 || height == 0) {
+      null
+    } else {
+      val pixels = new Array[Int](width * height)
+      val read = synchronized {
+        if (!closed) {
+          val bytes = buffer.duplicate()
+          bytes.position(offsets(i).toInt)
+          bytes.slice().asIntBuffer().get(pixels)
+        }
+        !closed
+      }
+      if (read) {
+        val stored =
+          new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE)
+        stored.getRaster.setDataElements(0, 0, width, height, pixels)
+        ImageUtil.compatible(stored)
+      } else {
+        null
+      }
+    }
+  }
+
+  /**
+    * Unmaps the atlas, so its file can be deleted.
+    */
+  def close(): Unit = synchronized {
+    if (!closed) {
+      closed = true
+      AnimationAtlas.opened.remove(this)
+      ByteBufferUtil.cleanBuffer(buffer)
+    }
+  }
+}
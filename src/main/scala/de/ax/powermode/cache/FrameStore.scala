@@ -0,0 +1,169 @@
+package de.ax.powermode.cache
+
+import java.awt.image.BufferedImage
+import java.util.concurrent.atomic.{
+  AtomicInteger,
+  AtomicIntegerArray,
+  AtomicReferenceArray,
+  LongAdder
+}
+import java.util.concurrent.{Executor, RejectedExecutionException}
+
+object FrameStore {
+  def bytesOf(image: BufferedImage): Long =
+    image.getWidth.toLong * image.getHeight * 4
+
+  /**
+    * The frames of one owner (e.g. an animation) decoded for one maximum
+    * dimension, indexed by frame. Reading a frame is a plain array read,
+    * without locking or allocating.
+    */
+  final class Frames private[FrameStore] (val maxDimension: Int,
+                                          val size: Int) {
+    private[FrameStore] val images =
+      new AtomicReferenceArray[BufferedImage](size)
+    // set when a frame is read, cleared when eviction passes it
+    private[FrameStore] val referenced = new AtomicIntegerArray(size)
+    private[FrameStore] val pending = new AtomicIntegerArray(size)
+    private[FrameStore] val residentCount = new AtomicInteger()
+    @volatile private[FrameStore] var released = false
+
+    /**
+      * Frame `index` if it is stored, without counting a hit or miss.
+      */
+    def image(index: Int): BufferedImage = images.get(index)
+
+    def contains(index: Int): Boolean = images.get(index) != null
+
+    def resident: Int = residentCount.get()
+  }
+
+  private final class Entry(val frames: Frames,
+                            val index: Int,
+                            val image: BufferedImage)
+}
+
+/**
+  * Decoded animation frames, bounded by `maxBytes`. Frames live in the
+  * [[FrameStore.Frames]] of their owner and size, and can be decoded ahead of
+  * use on `decoder`. When the store is full, frames that were not read since
+  * eviction last passed them are evicted first (second chance eviction), so
+  * reads never take the store's lock.
+  */
+class FrameStore(maxBytes: () => Long, decoder: Executor) {
+  import FrameStore._
+
+  // all stored frames in the order they are passed by eviction
+  private val entries = new java.util.ArrayDeque[Entry]()
+  private var bytes = 0L
+  private val hitCount = new LongAdder
+  private val missCount = new LongAdder
+
+  def hits: Long = hitCount.sum()
+
+  def misses: Long = missCount.sum()
+
+  def sizeBytes: Long = synchronized { bytes }
+
+  def frames(maxDimension: Int, size: Int): Frames =
+    new Frames(maxDimension, size)
+
+  def get(frames: Frames, index: Int): BufferedImage = {
+    val image = frames.images.get(index)
+    if (image != null) {
+      frames.referenced.lazySet(index, 1)
+      hitCount.increment()
+    } else {
+      missCount.increment()
+    }
+    image
+  }
+
+  def getOrDecode(frames: Frames, index: Int)(
+      decode: => BufferedImage): BufferedImage = {
+    val found = get(frames, index)
+    if (found != null) {
+      found
+    } else {
+      val image = decode
+      if (image != null) {
+        put(frames, index, image)
+      }
+      image
+    }
+  }
+
+  /**
+    * Decodes the frame on the decoder unless it is already stored or being
+    * decoded.
+    */
+  def decodeAhead(frames: Frames, index: Int)(
+      decode: => BufferedImage): Unit = {
+    if (!frames.contains(index) && frames.pending.compareAndSet(index, 0, 1)) {
+      try {
+        decoder.execute { () =>
+          try {
+            val image = decode
+            if (image != null) {
+              put(frames, index, image)
+            }
+          } finally {
+            frames.pending.set(index, 0)
+          }
+        }
+      } catch {
+        case _: RejectedExecutionException =>
+          frames.pending.set(index, 0)
+      }
+    }
+  }
+
+  /**
+    * Drops all frames of `frames`; frames decoded for it later are not
+    * stored anymore.
+    */
+  def release(frames: Frames): Unit = synchronized {
+    frames.released = true
+    val stored = entries.iterator()
+    while (stored.hasNext) {
+      val entry = stored.next()
+      if (entry.frames eq frames) {
+        evict(entry)
+        stored.remove()
+      }
+    }
+  }
+
+  private def put(frames: Frames, index: Int, image: BufferedImage): Unit =
+    synchronized {
+      // a frame decoded twice, e.g. ahead and on demand, is stored once
+      if (!frames.released && frames.images.compareAndSet(index, null, image)) {
+        frames.residentCount.incrementAndGet()
+        frames.referenced.set(index, 1)
+        val added = new Entry(frames, index, image)
+        entries.addLast(added)
+        bytes += bytesOf(image)
+        // evict frames that were not read since they were last passed, but
+        // always keep the new one
+        val limit = maxBytes()
+        var passes = entries.size * 2
+        while (bytes > limit && passes > 0 && entries.size > 1) {
+          val entry = entries.pollFirst()
+          if ((entry eq added) ||
+              entry.frames.referenced.getAndSet(entry.index, 0) != 0) {
+            entries.addLast(entry)
+          } else {
+            evict(entry)
+          }
+          passes -= 1
+        }
+      }
+    }
+
+  private def evict(entry: Entry): Unit = {
+    if (entry.frames.images.compareAndSet(entry.index, entry.image, null)) {
+      entry.frames.residentCount.decrementAndGet()
+    }
+    bytes -= bytesOf(entry.image)
+  }
+}
@@ -0,0 +1,129 @@
+package de.ax.powermode.cache
+
+import java.awt.image.BufferedImage
+import java.awt.{
+  AlphaComposite,
+  Graphics2D,
+  GraphicsConfiguration,
+  RenderingHints,
+  Transparency
+}
+import scala.collection.mutable
+
+object ScaledFrameCache {
+
+  /**
+    * Rounds `size` to one of `buckets` evenly spaced sizes up to `max`.
+    */
+  def linearBucket(size: Int, max: Int, buckets: Int): Int = {
+    val step = math.max(2, max / buckets)
+    val bucket = ((size + step / 2) / step) * step
+    math.max(step, math.min(bucket, math.max(max, step)))
+  }
+
+  /**
+    * Rounds `size` to one of eight sizes per power of two, for elements
+    * without a configured maximum size.
+    */
+  def octaveBucket(size: Int): Int = {
+    val step = math.max(2, Integer.highestOneBit(math.max(size, 1)) / 8)
+    math.max(step, ((size + step / 2) / step) * step)
+  }
+}
+
+/**
+  * Pre-scaled (and optionally vertically flipped) copies of animation frames,
+  * so that elements can blit them 1:1 instead of resampling the source frame
+  * on every paint. Callers are expected to quantize the requested sizes, see
+  * [[ScaledFrameCache.linearBucket]] and [[ScaledFrameCache.octaveBucket]].
+  *
+  * The cache is dropped as a whole when it grows beyond `maxBytes` or when
+  * [[invalidate]] is called, e.g. because the configured size changed.
+  */
+class ScaledFrameCache(maxBytes: Long) {
+
+  private class ScaledFrame(val width: Int,
+                            val height: Int,
+                            val flipped: Boolean,
+                            val image: BufferedImage)
+
+  private val frames =
+    new java.util.WeakHashMap[BufferedImage, mutable.ArrayBuffer[ScaledFrame]]()
+  private var bytes = 0L
+  private var key = Long.MinValue
+
+  /**
+    * Drops all cached frames if `newKey` differs from the key of the
+    * previous call.
+    */
+  def invalidateUnless(newKey: Long): Unit = synchronized {
+    if (newKey != key) {
+      key = newKey
+      invalidate()
+    }
+  }
+
+  def invalidate(): Unit = synchronized {
+    frames.clear()
+    bytes = 0
+  }
+
+  def scaled(gc: GraphicsConfiguration,
+             source: BufferedImage,
+             width: Int,
+             height: Int,
+             flipped: Boolean): BufferedImage = synchronized {
+    var scaledFrames = frames.get(source)
+    if (scaledFrames == null) {
+      scaledFrames = mutable.ArrayBuffer.empty[ScaledFrame]
+      frames.put(source, scaledFrames)
+    }
+    var i = 0
+    var found: BufferedImage = null
+    while (found == null && i < scaledFrames.length) {
+      val f = scaledFrames(i)
+      if (f.width == width && f.height == height && f.flipped == flipped) {
+        found = f.image
+      }
+      i += 1
+    }
+    if (found == null) {
+      found = scale(gc, source, width, height, flipped)
+      val size = width.toLong * height * 4
+      if (bytes + size > maxBytes) {
+        invalidate()
+        scaledFrames = mutable.ArrayBuffer.empty[ScaledFrame]
+        frames.put(source, scaledFrames)
+      }
+      bytes += size
+      scaledFrames += new ScaledFrame(width, height, flipped, found)
+    }
+    found
+  }
+
+  private def scale(gc: GraphicsConfiguration,
+                    source: BufferedImage,
+                    width: Int,
+                    height: Int,
+                    flipped: Boolean): BufferedImage = {
+    val img =
+      if (gc != null) {
+        gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT)
+      } else {
+        new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE)
+      }
+    val g2d: Graphics2D = img.createGraphics()
+    g2d.setComposite(AlphaComposite.Src)
+    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                         RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+    g2d.setRenderingHint(RenderingHints.KEY_RENDERING,
+                         RenderingHints.VALUE_RENDER_QUALITY)
+    if (flipped) {
+      g2d.drawImage(source, 0, height, width, -height, null)
+    } else {
+      g2d.drawImage(source, 0, 0, width, height, null)
+    }
+    g2d.dispose()
+    img
+  }
+}
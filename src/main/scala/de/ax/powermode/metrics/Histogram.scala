@@ -0,0 +1,98 @@
+package de.ax.powermode.metrics
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+object Histogram {
+  // every power of two is split into 4 buckets, so a bucket is at most 25%
+  // wider than its lower bound
+  private val SubBuckets = 4
+  private val BucketCount = 62 * SubBuckets
+
+  private[metrics] def bucketOf(value: Long): Int = {
+    if (value < SubBuckets) {
+      math.max(value, 0).toInt
+    } else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      val sub = ((value >>> (exponent - 2)) & (SubBuckets - 1)).toInt
+      (exponent - 1) * SubBuckets + sub
+    }
+  }
+
+  private[metrics] def lowerBound(bucket: Int): Long = {
+    if (bucket < SubBuckets) {
+      bucket.toLong
+    } else {
+      val exponent = bucket / SubBuckets + 1
+      (SubBuckets + bucket % SubBuckets).toLong << (exponent - 2)
+    }
+  }
+}
+
+/**
+  * A histogram of non-negative values, e.g. durations in nanoseconds, in
+  * logarithmic buckets. Recording is lock-free and does not allocate, so
+  * it can be done on every frame; percentiles are exact to a bucket.
+  */
+final class Histogram {
+  import Histogram._
+
+  private val buckets = new AtomicLongArray(BucketCount)
+  private val sum = new AtomicLong(0)
+  private val maximum = new AtomicLong(0)
+
+  def record(value: Long): Unit = {
+    buckets.incrementAndGet(bucketOf(value))
+    sum.addAndGet(value)
+    var max = maximum.get()
+    while (value > max && !maximum.compareAndSet(max, value)) {
+      max = maximum.get()
+    }
+  }
+
+  def count: Long = {
+    var n = 0L
+    var i = 0
+    while (i < BucketCount) {
+      n += buckets.get(i)
+      i += 1
+    }
+    n
+  }
+
+  def mean: Double = {
+    val n = count
+    if (n == 0) 0 else sum.get().toDouble / n
+  }
+
+  def max: Long = maximum.get()
+
+  /**
+    * The value `fraction` of all recorded values are at most, rounded up
+    * to the end of its bucket.
+    */
+  def percentile(fraction: Double): Long = {
+    val n = count
+    if (n == 0) {
+      0
+    } else {
+      val rank = math.max(1L, math.ceil(n * fraction).toLong)
+      var seen = 0L
+      var i = 0
+      while (i < BucketCount - 1 && seen + buckets.get(i) < rank) {
+        seen += buckets.get(i)
+        i += 1
+      }
+      math.min(lowerBound(i + 1) - 1, max)
+    }
+  }
+
+  def reset(): Unit = {
+    var i = 0
+    while (i < BucketCount) {
+      buckets.set(i, 0)
+      i += 1
+    }
+    sum.set(0)
+    maximum.set(0)
+  }
+}
@@ -0,0 +1,102 @@
+package de.ax.powermode.metrics
+
+import de.ax.powermode.power.management.QualityGovernor
+import de.ax.powermode.{ImageUtil, PowerMode}
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+import scala.jdk.CollectionConverters._
+
+/**
+  * Runtime metrics of the plugin. Recording only touches atomics and
+  * adders, so it stays on all the time; the values are read through the
+  * [[PowerMetricsMXBean]] and the debug overlay.
+  */
+object PowerMetrics {
+  val objectName = new ObjectName("de.ax.powermode:type=PowerMetrics")
+
+  // nanoseconds spent updating all containers per frame
+  val updateTick = new Histogram
+  // nanoseconds spent painting the effects of one container
+  val paint = new Histogram
+  // nanoseconds between frames away from the scheduled interval
+  val frameJitter = new Histogram
+  // caret positions spawned, and coalesced away by the spawn budget
+  val spawns = new LongAdder
+  val droppedSpawns = new LongAdder
+  // chunks the audio line ran dry before
+  val audioUnderruns = new LongAdder
+
+  def register(): Unit = {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(new Bean, objectName)
+      }
+    } catch {
+      case e: Exception =>
+        PowerMode.logger.debug("could not register metrics", e)
+    }
+  }
+
+  def unregister(): Unit = {
+    try {
+      val server = ManagementFactory.getPlatformMBeanServer
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName)
+      }
+    } catch {
+      case e: Exception =>
+        PowerMode.logger.debug("could not unregister metrics", e)
+    }
+  }
+
+  def reset(): Unit = {
+    updateTick.reset()
+    paint.reset()
+    frameJitter.reset()
+    spawns.reset()
+    droppedSpawns.reset()
+    audioUnderruns.reset()
+  }
+
+  private def manager =
+    Option(PowerMode.getInstance).flatMap(_.maybeElementOfPowerContainerManager)
+
+  private class Bean extends PowerMetricsMXBean {
+    override def getUpdateTick: HistogramSnapshot =
+      new HistogramSnapshot(updateTick)
+
+    override def getPaint: HistogramSnapshot = new HistogramSnapshot(paint)
+
+    override def getFrameJitter: HistogramSnapshot =
+      new HistogramSnapshot(frameJitter)
+
+    override def getSpawns: Long = spawns.sum()
+
+    override def getDroppedSpawns: Long = droppedSpawns.sum()
+
+    override def getDroppedInputEvents: Long =
+      manager.map(_.droppedInputEvents).getOrElse(0L)
+
+    override def getFrameCacheHits: Long = ImageUtil.frameStore.hits
+
+    override def getFrameCacheMisses: Long = ImageUtil.frameStore.misses
+
+    override def getFrameCacheBytes: Long = ImageUtil.frameStore.sizeBytes
+
+    override def getAudioUnderruns: Long = audioUnderruns.sum()
+
+    override def getQuality: Float = QualityGovernor.quality
+
+    override def getElementCounts: java.util.Map[String, Integer] =
+      manager
+        .map(_.elementCounts)
+        .getOrElse(Map.empty[String, Int])
+        .map { case (k, v) => k -> Integer.valueOf(v) }
+        .asJava
+
+    override def reset(): Unit = PowerMetrics.reset()
+  }
+}
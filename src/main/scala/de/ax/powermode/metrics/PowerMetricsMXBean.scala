@@ -0,0 +1,58 @@
+package de.ax.powermode.metrics
+
+/**
+  * What the plugin costs, as seen in JConsole or VisualVM under
+  * `de.ax.powermode:type=PowerMetrics`. Durations are in microseconds.
+  */
+trait PowerMetricsMXBean {
+  def getUpdateTick: HistogramSnapshot
+
+  def getPaint: HistogramSnapshot
+
+  def getFrameJitter: HistogramSnapshot
+
+  def getSpawns: Long
+
+  def getDroppedSpawns: Long
+
+  def getDroppedInputEvents: Long
+
+  def getFrameCacheHits: Long
+
+  def getFrameCacheMisses: Long
+
+  def getFrameCacheBytes: Long
+
+  def getAudioUnderruns: Long
+
+  def getQuality: Float
+
+  /**
+    * Live elements by editor and type, e.g. `editor 3/PowerFlame`.
+    */
+  def getElementCounts: java.util.Map[String, Integer]
+
+  def reset(): Unit
+}
+
+/**
+  * The state of a [[Histogram]] of nanoseconds at one point in time, in
+  * microseconds.
+  */
+class HistogramSnapshot(histogram: Histogram) {
+  private val count = histogram.count
+  private val mean = histogram.mean / 1000
+  private val p50 = histogram.percentile(0.5) / 1000.0
+  private val p99 = histogram.percentile(0.99) / 1000.0
+  private val max = histogram.max / 1000.0
+
+  def getCount: Long = count
+
+  def getMean: Double = mean
+
+  def getP50: Double = p50
+
+  def getP99: Double = p99
+
+  def getMax: Double = max
+}
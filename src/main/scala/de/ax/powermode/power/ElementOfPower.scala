@@ -1,8 +1,7 @@
 package de.ax.powermode.power
 
 import de.ax.powermode.Power
-
-import java.awt.Graphics
+import de.ax.powermode.power.element.ElementFrames
 
 /**
   * Created by nyxos on 10.03.16.
@@ -11,10 +10,21 @@ trait ElementOfPower extends Power {
 
   def update(delta: Float): Boolean
 
-  def render(g: Graphics, dxx: Int, dyy: Int): Unit
+  /**
+    * Adds what the element shows after the last [[update]] to `frame`,
+    * offset by `dxx`, `dyy`. The EDT renders the frame, so that it never
+    * reads the element while the update thread changes it.
+    */
+  def draw(frame: ElementFrames.Frame, dxx: Int, dyy: Int): Unit
 
   def life: Long
 
+  /**
+    * Whether the element changes from frame to frame. Static elements are
+    * still updated and rendered, but do not keep the animation clock awake.
+    */
+  def isAnimated: Boolean = alive
+
   def initLife: Long
 
   def lifeFactor: Float = {
@@ -0,0 +1,36 @@
+package de.ax.powermode.power
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * The random numbers of all effects, instead of `Math.random`.
+  *
+  * A SplitMix64 generator over a single atomic counter, so it is safe on
+  * any thread without locking. It is seeded from the clock; seeding it
+  * explicitly makes the effects of a replayed recording repeat exactly, as
+  * long as a single thread draws the numbers.
+  */
+object PowerRandom {
+  private val state = new AtomicLong(System.nanoTime())
+
+  def setSeed(seed: Long): Unit = {
+    state.set(seed)
+  }
+
+  def nextLong(): Long = {
+    var z = state.addAndGet(0x9e3779b97f4a7c15L)
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL
+    z ^ (z >>> 31)
+  }
+
+  /**
+    * Uniform in [0, 1), like `Math.random`.
+    */
+  def nextDouble(): Double = (nextLong() >>> 11) / (1L << 53).toDouble
+
+  /**
+    * Uniform in [0, bound), for a positive bound.
+    */
+  def nextInt(bound: Int): Int = (((nextLong() >>> 33) * bound) >>> 31).toInt
+}
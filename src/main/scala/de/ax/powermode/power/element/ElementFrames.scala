@@ -0,0 +1,154 @@
+package de.ax.powermode.power.element
+
+import de.ax.powermode.PowerMode
+import de.ax.powermode.power.management.{DirtyRegion, TripleBuffer}
+
+import java.awt.image.BufferedImage
+import java.awt.{AlphaComposite, Graphics, Graphics2D}
+
+object ElementFrames {
+  // what an entry shows, and so how it is drawn
+  val Flame = 0
+  val FlippedFlame = 1
+  val Bam = 2
+  val Indicator = 3
+
+  /**
+    * Render data of all flames, BAMs and indicators at one point in time.
+    * Flames and BAMs are in scroll independent editor coordinates, the
+    * indicator is fixed to the visible area. Each entry is drawn at its
+    * size, without scaling on paint.
+    */
+  final class Frame {
+    var count = 0
+    var kinds = new Array[Int](0)
+    var images = new Array[BufferedImage](0)
+    var xs = new Array[Int](0)
+    var ys = new Array[Int](0)
+    var widths = new Array[Int](0)
+    var heights = new Array[Int](0)
+    var alphas = new Array[Float](0)
+    // the bitmap, heatup percentage and grand of indicators
+    var bitmaps = new Array[PowerIndicator.Bitmap](0)
+    var percents = new Array[Int](0)
+    var grands = new Array[String](0)
+
+    def clear(): Unit = {
+      // do not keep dropped frames reachable
+      java.util.Arrays.fill(images.asInstanceOf[Array[AnyRef]], 0, count, null)
+      java.util.Arrays.fill(grands.asInstanceOf[Array[AnyRef]], 0, count, null)
+      java.util.Arrays.fill(bitmaps.asInstanceOf[Array[AnyRef]], 0, count, null)
+      count = 0
+    }
+
+    def add(kind: Int,
+            image: BufferedImage,
+            x: Int,
+            y: Int,
+            width: Int,
+            height: Int,
+            alpha: Float): Unit = {
+      if (kinds.length == count) {
+        grow()
+      }
+      kinds(count) = kind
+      images(count) = image
+      xs(count) = x
+      ys(count) = y
+      widths(count) = width
+      heights(count) = height
+      alphas(count) = alpha
+      count += 1
+    }
+
+    def addIndicator(bitmap: PowerIndicator.Bitmap,
+                     x: Int,
+                     y: Int,
+                     width: Int,
+                     height: Int,
+                     alpha: Float,
+                     percent: Int,
+                     grand: String): Unit = {
+      add(Indicator, null, x, y, width, height, alpha)
+      bitmaps(count - 1) = bitmap
+      percents(count - 1) = percent
+      grands(count - 1) = grand
+    }
+
+    def addBounds(region: DirtyRegion, scrollX: Int, scrollY: Int): Unit = {
+      var i = 0
+      while (i < count) {
+        if (kinds(i) == Indicator) {
+          region.add(xs(i) - 1, ys(i) - 1, widths(i) + 2, heights(i) + 2)
+        } else {
+          region.add(xs(i) - scrollX - 1,
+                     ys(i) - scrollY - 1,
+                     widths(i) + 2,
+                     heights(i) + 2)
+        }
+        i += 1
+      }
+    }
+
+    def render(g: Graphics, scrollX: Int, scrollY: Int): Unit = {
+      if (count > 0) {
+        PowerFlame.frameCache.invalidateUnless(
+          PowerMode.getInstance.maxFlameSize)
+        val g2d: Graphics2D = g.create.asInstanceOf[Graphics2D]
+        try {
+          val configuration = g2d.getDeviceConfiguration
+          var i = 0
+          while (i < count) {
+            g2d.setComposite(
+              AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alphas(i)))
+            kinds(i) match {
+              case Flame | FlippedFlame =>
+                val frame = PowerFlame.frameCache.scaled(configuration,
+                                                         images(i),
+                                                         widths(i),
+                                                         heights(i),
+                                                         kinds(i) == FlippedFlame)
+                g2d.drawImage(frame, xs(i) - scrollX, ys(i) - scrollY, null)
+              case Bam =>
+                val frame = PowerBam.frameCache
+                  .scaled(configuration, images(i), widths(i), heights(i), false)
+                g2d.drawImage(frame, xs(i) - scrollX, ys(i) - scrollY, null)
+              case Indicator =>
+                bitmaps(i).render(g2d,
+                                  xs(i),
+                                  ys(i),
+                                  widths(i),
+                                  heights(i),
+                                  percents(i),
+                                  grands(i))
+            }
+            i += 1
+          }
+        } finally {
+          g2d.dispose()
+        }
+      }
+    }
+
+    private def grow(): Unit = {
+      val capacity = math.max(8, kinds.length * 2)
+      kinds = java.util.Arrays.copyOf(kinds, capacity)
+      images = java.util.Arrays.copyOf(images, capacity)
+      xs = java.util.Arrays.copyOf(xs, capacity)
+      ys = java.util.Arrays.copyOf(ys, capacity)
+      widths = java.util.Arrays.copyOf(widths, capacity)
+      heights = java.util.Arrays.copyOf(heights, capacity)
+      alphas = java.util.Arrays.copyOf(alphas, capacity)
+      percents = java.util.Arrays.copyOf(percents, capacity)
+      grands = java.util.Arrays.copyOf(grands, capacity)
+      bitmaps = java.util.Arrays.copyOf(bitmaps, capacity)
+    }
+  }
+}
+
+/**
+  * Frames of flames, BAMs and the indicator handed from the update thread
+  * to the EDT, so that the EDT never touches the live elements.
+  */
+class ElementFrames
+    extends TripleBuffer[ElementFrames.Frame](() => new ElementFrames.Frame)
@@ -1,12 +1,16 @@
 package de.ax.powermode.power.element
 
-import de.ax.powermode.power.ElementOfPower
+import de.ax.powermode.cache.ScaledFrameCache
+import de.ax.powermode.power.{ElementOfPower, PowerRandom}
 import de.ax.powermode.{ImageUtil, Util}
 
 import java.awt.image.BufferedImage
-import java.awt.{AlphaComposite, Graphics, Graphics2D}
 import scala.language.postfixOps
 
+object PowerBam {
+  val frameCache = new ScaledFrameCache(32L * 1024 * 1024)
+}
+
 /**
   * Created by nyxos on 28.12.16.
   */
@@ -26,33 +30,39 @@ case class PowerBam(_x: Float,
 
   var i = 0
 
-  var currentImage: Option[BufferedImage] =
-    if (powerMode.isSingleBamImagePerEvent) {
-      val bis = ImageUtil.imagesForPath(powerMode.bamImageFolder)
-      val img = bis((math.random() * (bis.size - 1)) % bis.size toInt)
-      val ih = img.getWidth / img.getHeight.toDouble
-      logger.debug(s"img ${img.getWidth} / ${img.getHeight}")
-      logger.debug(s"old ${_width} ${_height}")
-      if (ih > 1) {
-        _height = (_height / ih).toFloat
-        _width = _width
-      } else {
-        _height = _height
-        _width = (_width * ih).toFloat
-      }
-      logger.debug(s"new ${_width} ${_height}")
-      Option(img)
-    } else {
-      None
-    }
+  // with a single image per event, where in the animation it is picked,
+  // drawn here so that the random numbers are drawn in spawn order
+  private val singleImagePick =
+    if (powerMode.isSingleBamImagePerEvent) Some(PowerRandom.nextDouble())
+    else None
+
+  var currentImage: Option[BufferedImage] = None
 
+  /**
+    * Frames are looked up on the animation thread and never decoded there;
+    * the BAM shows once a frame was decoded in the background, and a single
+    * image is picked and sized once.
+    */
   override def update(delta: Float): Boolean = {
     if (alive) {
-      if (!powerMode.isSingleBamImagePerEvent) {
-        val bis = ImageUtil.imagesForPath(powerMode.bamImageFolder)
-        if (bis.nonEmpty) {
-          currentImage = Option(bis(i % bis.size))
-        }
+      singleImagePick match {
+        case Some(pick) =>
+          if (currentImage.isEmpty) {
+            val bis = ImageUtil.animationForPath(powerMode.bamImageFolder)
+            val img = bis.residentFrame((pick * (bis.size - 1)).toInt,
+                                        ImageUtil.maxBamDimension)
+            if (img != null) {
+              fitTo(img)
+              currentImage = Some(img)
+            }
+          }
+        case None =>
+          val bam = ImageUtil
+            .animationForPath(powerMode.bamImageFolder)
+            .residentFrame(i, ImageUtil.maxBamDimension)
+          if (bam != null) {
+            currentImage = Option(bam)
+          }
       }
       i += 1
       x = _x + (0.5 * _width) - (0.5 * _width * lifeFactor)
@@ -63,22 +73,32 @@ case class PowerBam(_x: Float,
     !alive
   }
 
-  override def render(g: Graphics, dxx: Int, dyy: Int): Unit = {
+  // keeps the aspect ratio of the single image
+  private def fitTo(img: BufferedImage): Unit = {
+    val ih = img.getWidth / img.getHeight.toDouble
+    logger.debug(s"img ${img.getWidth} / ${img.getHeight}")
+    logger.debug(s"old ${_width} ${_height}")
+    if (ih > 1) {
+      _height = (_height / ih).toFloat
+    } else {
+      _width = (_width * ih).toFloat
+    }
+    logger.debug(s"new ${_width} ${_height}")
+  }
+
+  override def draw(frame: ElementFrames.Frame, dxx: Int, dyy: Int): Unit = {
     currentImage.foreach { currentImage =>
-      if (alive) {
-        val g2d: Graphics2D = g.create.asInstanceOf[Graphics2D]
-        g2d.setComposite(
-          AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                                     Util.alpha(0.9f * (1 - lifeFactor))))
-        g2d.drawImage(currentImage,
-                      x + dxx toInt,
-                      y + dyy toInt,
-                      width toInt,
-                      height toInt,
-                      null)
-        g2d.dispose()
+      if (alive && width >= 1 && height >= 1) {
+        val w = ScaledFrameCache.octaveBucket(width.toInt)
+        val h = ScaledFrameCache.octaveBucket(height.toInt)
+        frame.add(ElementFrames.Bam,
+                  currentImage,
+                  x + dxx + (width - w) / 2 toInt,
+                  y + dyy + (height - h) / 2 toInt,
+                  w,
+                  h,
+                  Util.alpha(0.9f * (1 - lifeFactor)))
       }
     }
-
   }
 }
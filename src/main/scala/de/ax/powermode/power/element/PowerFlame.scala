@@ -1,10 +1,16 @@
 package de.ax.powermode.power.element
 
+import de.ax.powermode.cache.ScaledFrameCache
 import de.ax.powermode.power.ElementOfPower
 import de.ax.powermode.{ImageUtil, Util}
 
 import java.awt.image.BufferedImage
-import java.awt.{AlphaComposite, Graphics, Graphics2D}
+
+object PowerFlame {
+  val sizeBuckets = 16
+
+  val frameCache = new ScaledFrameCache(32L * 1024 * 1024)
+}
 
 case class PowerFlame(_x: Int,
                       _y: Int,
@@ -24,9 +30,11 @@ case class PowerFlame(_x: Int,
 
   override def update(delta: Float): Boolean = {
     if (alive) {
-      val flameImages1 = ImageUtil.imagesForPath(powerMode.flameImageFolder)
-      if (flameImages1.nonEmpty) {
-        currentImage = flameImages1(i % flameImages1.size)
+      val flameImage = ImageUtil
+        .animationForPath(powerMode.flameImageFolder)
+        .frame(i, powerMode.maxFlameSize)
+      if (flameImage != null) {
+        currentImage = flameImage
       }
       i += 1
       x = _x - (0.5 * _width * lifeFactor).toInt
@@ -40,29 +48,23 @@ case class PowerFlame(_x: Int,
     !alive
   }
 
-  override def render(g: Graphics, dxx: Int, dyy: Int): Unit = {
-    if (alive) {
-
-      val g2d: Graphics2D = g.create.asInstanceOf[Graphics2D]
-      g2d.setComposite(
-        AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-                                   Util.alpha(0.9f * (1 - lifeFactor))))
-
-      if (up) {
-        if (currentImage != null)
-          g2d.drawImage(currentImage, x + dxx, y + dyy, width, height, null)
-      } else {
-        // flip horizontally
-        if (currentImage != null)
-          g2d.drawImage(currentImage,
-                        x + dxx,
-                        y + dyy + height,
-                        width,
-                        -height,
-                        null)
-      }
-      g2d.dispose()
+  override def draw(frame: ElementFrames.Frame, dxx: Int, dyy: Int): Unit = {
+    if (alive && currentImage != null && width > 0 && height > 0) {
+      val w = bucket(width)
+      val h = bucket(height)
+      // the lower flame is flipped vertically
+      frame.add(if (up) ElementFrames.Flame else ElementFrames.FlippedFlame,
+                currentImage,
+                x + dxx + (width - w) / 2,
+                y + dyy + (height - h) / 2,
+                w,
+                h,
+                Util.alpha(0.9f * (1 - lifeFactor)))
     }
   }
 
+  private def bucket(size: Int): Int =
+    ScaledFrameCache.linearBucket(size,
+                                  powerMode.maxFlameSize,
+                                  PowerFlame.sizeBuckets)
 }
@@ -1,28 +1,24 @@
 package de.ax.powermode.power.element
 
-import com.intellij.openapi.editor.Editor
-import de.ax.powermode.power.ElementOfPower
+import de.ax.powermode.power.{ElementOfPower, PowerRandom}
 import de.ax.powermode.{PowerMode, Util}
 import squants.DimensionlessConversions.DimensionlessConversions
 
 import java.awt._
 import java.awt.image.BufferedImage
 import scala.annotation.tailrec
-import scala.collection.mutable
 import scala.language.postfixOps
 
 /**
   * Created by nyxos on 25.02.17.
   */
 object PowerIndicator {
-  var indicators = mutable.Queue.empty[PowerIndicator]
-
-  def addIndicator(i: PowerIndicator): Unit = {
-    this.synchronized {
-      PowerIndicator.indicators += i
-      PowerIndicator.indicators = PowerIndicator.indicators.filter(i => i.alive)
-    }
-  }
+  // the indicator is laid out on a canvas of this size and scaled down
+  private val canvasSize = 600
+  // the part of its life over which the indicator shrinks after a keystroke
+  private val pulse = 0.25f
+  private val font = new Font("Dialog", Font.PLAIN, 100)
+  private val barStroke = new BasicStroke(10)
 
   val grands = Seq("perfect",
                    "excellent",
@@ -41,7 +37,7 @@ object PowerIndicator {
   def genGrand: String = {
     @tailrec
     def nextGrand(lastGrand: Option[String]): String = {
-      val grand = grands((Math.random() * 100023451).toInt % grands.length) + "!"
+      val grand = grands(PowerRandom.nextInt(grands.length)) + "!"
       if (lastGrand.contains(grand)) {
         nextGrand(lastGrand)
       } else {
@@ -49,7 +45,7 @@ object PowerIndicator {
       }
     }
 
-    if (math.random * 100.percent < Seq(
+    if (PowerRandom.nextDouble() * 100.percent < Seq(
           1.percent,
           0.2 * PowerMode.getInstance.valueFactor).max) {
       val grand = nextGrand(lastGrand)
@@ -59,108 +55,79 @@ object PowerIndicator {
       ""
     }
   }
-}
-
-case class PowerIndicator(_x: Float,
-                          _y: Float,
-                          _width: Float,
-                          _height: Float,
-                          initLife: Long,
-                          editor: Editor)
-    extends ElementOfPower {
-  val identifier = System.currentTimeMillis() + (Math.random() * 1000000)
-  var diffLife = Option.empty[Long]
-  var x: Double = _x
-  var y: Double = _y
-  var width: Double = 0
-  var height: Double = 0
-  PowerIndicator.addIndicator(this)
-  val life2 = System.currentTimeMillis() + initLife
-  val grand = PowerIndicator.genGrand
-
-  override def life = {
-
-    if (isLast) {
-      math.max(life2.toDouble, System.currentTimeMillis() + (initLife * 0.75)) toLong
-    } else {
-      diffLife = Some(
-        diffLife.getOrElse(
-          System.currentTimeMillis() + (initLife * 0.75) toLong))
-      diffLife.get
-    }
-  }
-
-  def isLast: Boolean = {
-    PowerIndicator.indicators != null && PowerIndicator.indicators.lastOption
-      .filter(_ != null)
-      .exists(i => identifier == i.identifier)
-  }
-
-  override def update(delta: Float): Boolean = {
-    if (alive) {
-      x = _x + (0.5 * _width) - (0.5 * _width * (1 - lifeFactor))
-      y = _y + (0.5 * _height) - (0.5 * _height * (1 - lifeFactor))
-      width = _width * (1 - lifeFactor)
-      height = _height * (1 - lifeFactor)
-    }
-    !alive
-  }
-
-  var lastScrollPosition = Option.empty[(Int, Int)]
-
-  override def render(g: Graphics, _dxx: Int, _dyy: Int): Unit = {
-    def limit(v: Int, max: Int): Int = {
-      //      if (v > max) max else if (v < -max) -max else v
-      v
-    }
 
-    if (alive && powerMode.isEnabled && powerMode.powerIndicatorEnabled) {
-      val Some((dxx, dyy)) = lastScrollPosition
-        .map(lp => {
-          val (nx, ny) = (editor.getScrollingModel.getHorizontalScrollOffset,
-                          editor.getScrollingModel.getVerticalScrollOffset)
-          (lp._1 - nx, lp._2 - ny)
-        })
-        .orElse(Some(0, 0))
-        .map { case (x, y) => (limit(x, 100), limit(y, 100)) }
-      val g2d: Graphics2D = g.create.asInstanceOf[Graphics2D]
-      g2d.setComposite(
-        AlphaComposite.getInstance(
-          AlphaComposite.SRC_OVER,
-          Util.alpha(1f * (1 - lifeFactor) * (1 - lifeFactor))))
-
-      val bufferedImage =
-        new BufferedImage(600, 600, BufferedImage.TYPE_INT_ARGB)
-      val graphics = bufferedImage.getGraphics
-      drawIndicator(graphics.asInstanceOf[Graphics2D],
-                    bufferedImage.getWidth,
-                    bufferedImage.getHeight)
-      g2d.drawImage(bufferedImage,
-                    math.max(x, 0) - dxx toInt,
-                    math.max(y, 0) - dyy toInt,
-                    width toInt,
-                    height toInt,
-                    null)
-      g2d.dispose()
-      lastScrollPosition = Some(
-        (editor.getScrollingModel.getHorizontalScrollOffset,
-         editor.getScrollingModel.getVerticalScrollOffset))
+  /**
+    * The bitmap of one indicator, rendered at the indicator's full display
+    * size and only redrawn when the percentage, the grand or the display
+    * scale changed. Owned by the EDT.
+    */
+  private[element] final class Bitmap(width: Int, height: Int) {
+    private var image: BufferedImage = null
+    private var imagePercent = -1
+    private var imageGrand = ""
+
+    /**
+      * Paints the indicator into the given bounds, scaling the bitmap while
+      * the indicator pulses.
+      */
+    def render(g2d: Graphics2D,
+               x: Int,
+               y: Int,
+               drawWidth: Int,
+               drawHeight: Int,
+               percent: Int,
+               grand: String): Unit = {
+      val transform = g2d.getTransform
+      val imageWidth =
+        math.max(1, math.ceil(width * transform.getScaleX).toInt)
+      val imageHeight =
+        math.max(1, math.ceil(height * transform.getScaleY).toInt)
+      val resized = image == null || image.getWidth != imageWidth ||
+        image.getHeight != imageHeight
+      if (resized || percent != imagePercent || grand != imageGrand) {
+        if (resized) {
+          image = g2d.getDeviceConfiguration
+            .createCompatibleImage(imageWidth,
+                                   imageHeight,
+                                   Transparency.TRANSLUCENT)
+        }
+        val graphics = image.createGraphics()
+        graphics.setComposite(AlphaComposite.Clear)
+        graphics.fillRect(0, 0, imageWidth, imageHeight)
+        graphics.setComposite(AlphaComposite.SrcOver)
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                                  RenderingHints.VALUE_ANTIALIAS_ON)
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                                  RenderingHints.VALUE_TEXT_ANTIALIAS_ON)
+        graphics.scale(imageWidth / canvasSize.toDouble,
+                       imageHeight / canvasSize.toDouble)
+        drawIndicator(graphics, percent / 100.0, grand, canvasSize, canvasSize)
+        graphics.dispose()
+        imagePercent = percent
+        imageGrand = grand
+      }
+      g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+      g2d.drawImage(image, x, y, drawWidth, drawHeight, null)
     }
   }
 
-  private def drawIndicator(graphics: Graphics2D, width: Int, height: Int) = {
+  private def drawIndicator(graphics: Graphics2D,
+                            valueFactor: Double,
+                            grand: String,
+                            width: Int,
+                            height: Int) = {
     graphics.setColor(Color.darkGray)
     graphics.fillRect(10, 10, width - 10, 200)
     graphics.setColor(Color.white)
-    graphics.setFont(new Font("Dialog", Font.PLAIN, 100))
-    graphics.drawString((powerMode.rawValueFactor * 100).toInt.toString + " %",
-                        10,
-                        100)
+    graphics.setFont(font)
+    graphics.drawString((valueFactor * 100).toInt.toString + " %", 10, 100)
     graphics.setColor(Color.white)
     graphics.drawString(grand, 10, 200)
     graphics.setColor(Color.white)
+    graphics.setStroke(barStroke)
     var f =
-      math.min(powerMode.rawValueFactor, 20 + (powerMode.rawValueFactor % 1))
+      math.min(valueFactor, 20 + (valueFactor % 1))
     var max: Double = math.ceil(f)
     val maxLines = 8
 
@@ -176,7 +143,6 @@ case class PowerIndicator(_x: Float,
                         width * (if (f >= 1) 1 else f) - 10 toInt,
                         barHeight)
       graphics.setColor(Color.black)
-      graphics.setStroke(new BasicStroke(10))
       graphics.drawRect(9,
                         height - (((max.toInt + 1) - math
                           .ceil(f)) * (barSpace + barHeight)) - 1 toInt,
@@ -186,3 +152,94 @@ case class PowerIndicator(_x: Float,
     }
   }
 }
+
+/**
+  * The heatup indicator of one editor. It is created once and reused: each
+  * keystroke moves it, restarts its pulse and may show a new grand. Its
+  * bitmap is rendered at full display size on the EDT, only redrawn when
+  * the shown percentage or the grand changes, and scaled while it pulses.
+  */
+case class PowerIndicator(var _x: Float,
+                          var _y: Float,
+                          _width: Float,
+                          _height: Float,
+                          initLife: Long)
+    extends ElementOfPower {
+  var x: Double = _x
+  var y: Double = _y
+  var width: Double = 0
+  var height: Double = 0
+  private var grand = ""
+  private var grandUntil = 0L
+  // when the latest keystroke moved the indicator
+  private var keyStrokeTime = System.currentTimeMillis()
+  private val bitmap = new PowerIndicator.Bitmap(_width.toInt, _height.toInt)
+
+  showGrand(PowerIndicator.genGrand)
+
+  override def life: Long = Long.MaxValue
+
+  // starts at full size and opacity on every keystroke, and shrinks to
+  // the size it stays at during the first quarter of its life
+  override def lifeFactor: Float =
+    math.min((System.currentTimeMillis() - keyStrokeTime) / initLife.toFloat,
+             PowerIndicator.pulse)
+
+  override def alive: Boolean =
+    super.alive && powerMode.powerIndicatorEnabled
+
+  // after its pulse it only changes while heatup changes, which keeps the
+  // clock awake anyway
+  override def isAnimated: Boolean =
+    alive && lifeFactor < PowerIndicator.pulse
+
+  /**
+    * Moves the indicator to its place for the latest keystroke. A grand
+    * stays until a keystroke without a new one, and fades shortly after.
+    */
+  def keyStroke(x: Float, y: Float): Unit = {
+    _x = x
+    _y = y
+    keyStrokeTime = System.currentTimeMillis()
+    showGrand(PowerIndicator.genGrand)
+  }
+
+  private def showGrand(newGrand: String): Unit = {
+    if (newGrand.nonEmpty) {
+      grand = newGrand
+      grandUntil = Long.MaxValue
+    } else {
+      grandUntil = math.min(grandUntil,
+                            System.currentTimeMillis() + (initLife * 0.75).toLong)
+    }
+  }
+
+  override def update(delta: Float): Boolean = {
+    if (alive) {
+      x = _x + (0.5 * _width) - (0.5 * _width * (1 - lifeFactor))
+      y = _y + (0.5 * _height) - (0.5 * _height * (1 - lifeFactor))
+      width = _width * (1 - lifeFactor)
+      height = _height * (1 - lifeFactor)
+    }
+    !alive
+  }
+
+  /**
+    * Adds the indicator at its place in the visible area, regardless of
+    * the offsets.
+    */
+  override def draw(frame: ElementFrames.Frame, dxx: Int, dyy: Int): Unit = {
+    if (alive && width >= 1 && height >= 1) {
+      val shownGrand =
+        if (System.currentTimeMillis() < grandUntil) grand else ""
+      frame.addIndicator(bitmap,
+                         math.max(x, 0).toInt,
+                         math.max(y, 0).toInt,
+                         width.toInt,
+                         height.toInt,
+                         Util.alpha(1f * (1 - lifeFactor) * (1 - lifeFactor)),
+                         (powerMode.rawValueFactor * 100).toInt,
+                         shownGrand)
+    }
+  }
+}
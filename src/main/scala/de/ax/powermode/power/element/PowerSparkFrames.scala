@@ -0,0 +1,58 @@
+package de.ax.powermode.power.element
+
+import de.ax.powermode.power.management.TripleBuffer
+
+import java.awt.{Graphics, Graphics2D}
+
+object PowerSparkFrames {
+  /**
+    * Render data of all sparks at one point in time, in scroll independent
+    * editor coordinates.
+    */
+  final class Frame {
+    var count = 0
+    var xs = new Array[Int](0)
+    var ys = new Array[Int](0)
+    var sizes = new Array[Int](0)
+    var colorIndices = new Array[Int](0)
+
+    def ensureCapacity(capacity: Int): Unit = {
+      if (xs.length < capacity) {
+        val newCapacity = math.max(capacity, xs.length * 2)
+        xs = java.util.Arrays.copyOf(xs, newCapacity)
+        ys = java.util.Arrays.copyOf(ys, newCapacity)
+        sizes = java.util.Arrays.copyOf(sizes, newCapacity)
+        colorIndices = java.util.Arrays.copyOf(colorIndices, newCapacity)
+      }
+    }
+
+    /**
+      * Stamps all sparks of this frame with a single graphics context.
+      */
+    def render(g: Graphics, scrollX: Int, scrollY: Int): Unit = {
+      if (count > 0) {
+        PowerSparkSprites.refresh()
+        val g2d: Graphics2D = g.create.asInstanceOf[Graphics2D]
+        try {
+          var i = 0
+          while (i < count) {
+            g2d.drawImage(PowerSparkSprites.sprite(colorIndices(i), sizes(i)),
+                          xs(i) - scrollX,
+                          ys(i) - scrollY,
+                          null)
+            i += 1
+          }
+        } finally {
+          g2d.dispose()
+        }
+      }
+    }
+  }
+}
+
+/**
+  * Spark frames handed from the update thread to the EDT.
+  */
+class PowerSparkFrames
+    extends TripleBuffer[PowerSparkFrames.Frame](() =>
+      new PowerSparkFrames.Frame)
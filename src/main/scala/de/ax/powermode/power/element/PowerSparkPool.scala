@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Baptiste Mesta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ax.powermode.power.element
+
+import de.ax.powermode.Power
+import de.ax.powermode.power.management.DirtyRegion
+
+/**
+  * All sparks of one container, stored as parallel primitive arrays.
+  *
+  * Dead sparks are culled by moving the last spark into their slot, so
+  * spawning, updating and rendering do not allocate once the arrays have
+  * grown to the working set. Colors are indices into [[PowerSparkSprites]].
+  *
+  * The pool is owned by the update thread; the EDT only sees the frames
+  * published through [[PowerSparkFrames]].
+  *
+  * @author Baptiste Mesta
+  */
+class PowerSparkPool(initialCapacity: Int = 1024) extends Power {
+  private var capacity = math.max(initialCapacity, 16)
+  private var xs = new Array[Float](capacity)
+  private var ys = new Array[Float](capacity)
+  private var dxs = new Array[Float](capacity)
+  private var dys = new Array[Float](capacity)
+  private var sizes = new Array[Float](capacity)
+  private var gravityFactors = new Array[Float](capacity)
+  private var lifes = new Array[Long](capacity)
+  private var colorIndices = new Array[Int](capacity)
+  private var scrollXs = new Array[Int](capacity)
+  private var scrollYs = new Array[Int](capacity)
+  private var count = 0
+
+  def size: Int = count
+
+  def isEmpty: Boolean = size == 0
+
+  def nonEmpty: Boolean = !isEmpty
+
+  def spawn(x: Float,
+            y: Float,
+            dx: Float,
+            dy: Float,
+            size: Float,
+            initLife: Long,
+            colorIndex: Int,
+            gravityFactor: Float,
+            scrollX: Int,
+            scrollY: Int): Unit = {
+    if (count == capacity) {
+      grow()
+    }
+    val i = count
+    xs(i) = x
+    ys(i) = y
+    dxs(i) = dx
+    dys(i) = dy
+    sizes(i) = size
+    gravityFactors(i) = gravityFactor
+    lifes(i) = System.currentTimeMillis() + initLife
+    colorIndices(i) = colorIndex
+    scrollXs(i) = scrollX
+    scrollYs(i) = scrollY
+    count += 1
+  }
+
+  def update(delta: Float): Unit = {
+    val now = System.currentTimeMillis()
+    val enabled = powerMode.isEnabled
+    var i = 0
+    while (i < count) {
+      dys(i) += (0.07f * gravityFactors(i)) * delta
+      xs(i) += dxs(i) * delta
+      ys(i) += dys(i) * delta
+      if (enabled && lifes(i) > now) {
+        i += 1
+      } else {
+        remove(i)
+      }
+    }
+  }
+
+  /**
+    * Writes the render data of all sparks into the back frame of `frames`
+    * and publishes it.
+    */
+  def publish(frames: PowerSparkFrames): Unit = {
+    val frame = frames.back
+    frame.ensureCapacity(count)
+    var i = 0
+    while (i < count) {
+      val size = sizes(i)
+      frame.xs(i) = (scrollXs(i) + xs(i) - (size / 2)).toInt
+      frame.ys(i) = (scrollYs(i) + ys(i) - (size / 2)).toInt
+      frame.sizes(i) = size.toInt
+      frame.colorIndices(i) = colorIndices(i)
+      i += 1
+    }
+    frame.count = count
+    frames.publish()
+  }
+
+  def addBounds(region: DirtyRegion, scrollX: Int, scrollY: Int): Unit = {
+    var i = 0
+    while (i < count) {
+      val size = sizes(i)
+      region.add((scrollXs(i) - scrollX + xs(i) - (size / 2)).toInt - 1,
+                 (scrollYs(i) - scrollY + ys(i) - (size / 2)).toInt - 1,
+                 size.toInt + 2,
+                 size.toInt + 2)
+      i += 1
+    }
+  }
+
+  def clear(): Unit = {
+    count = 0
+  }
+
+  private def remove(i: Int): Unit = {
+    val last = count - 1
+    if (i != last) {
+      xs(i) = xs(last)
+      ys(i) = ys(last)
+      dxs(i) = dxs(last)
+      dys(i) = dys(last)
+      sizes(i) = sizes(last)
+      gravityFactors(i) = gravityFactors(last)
+      lifes(i) = lifes(last)
+      colorIndices(i) = colorIndices(last)
+      scrollXs(i) = scrollXs(last)
+      scrollYs(i) = scrollYs(last)
+    }
+    count = last
+  }
+
+  private def grow(): Unit = {
+    capacity *= 2
+    xs = java.util.Arrays.copyOf(xs, capacity)
+    ys = java.util.Arrays.copyOf(ys, capacity)
+    dxs = java.util.Arrays.copyOf(dxs, capacity)
+    dys = java.util.Arrays.copyOf(dys, capacity)
+    sizes = java.util.Arrays.copyOf(sizes, capacity)
+    gravityFactors = java.util.Arrays.copyOf(gravityFactors, capacity)
+    lifes = java.util.Arrays.copyOf(lifes, capacity)
+    colorIndices = java.util.Arrays.copyOf(colorIndices, capacity)
+    scrollXs = java.util.Arrays.copyOf(scrollXs, capacity)
+    scrollYs = java.util.Arrays.copyOf(scrollYs, capacity)
+  }
+}
@@ -0,0 +1,107 @@
+package de.ax.powermode.power.element
+
+import de.ax.powermode.power.PowerRandom
+import de.ax.powermode.{Power, Util}
+
+import java.awt.geom.Ellipse2D
+import java.awt.image.BufferedImage
+import java.awt.{Color, Graphics2D, RenderingHints}
+
+/**
+  * Quantized spark color palette and pre-rasterized spark stamps.
+  *
+  * The palette spans the configured red/green/blue ranges with a few levels
+  * per channel, so a spark only needs to remember its palette index. Stamps
+  * are antialiased discs per palette color and spark size, rasterized on
+  * first use and thrown away when the color or size settings change.
+  */
+object PowerSparkSprites extends Power {
+  val levelsPerChannel = 4
+
+  private val settings = new Array[Int](8)
+  private val current = new Array[Int](8)
+  private var palette = Array(0xffffffff)
+  private var sprites = Array.empty[Array[BufferedImage]]
+
+  def paletteSize: Int = palette.length
+
+  /**
+    * Picks a color for a new spark. The index is reduced modulo the palette
+    * size when rendering, so it stays valid if the palette is rebuilt.
+    */
+  def randomColorIndex: Int = PowerRandom.nextInt(Int.MaxValue)
+
+  /**
+    * Rebuilds palette and stamps if the color or size settings changed since
+    * the last call. Must be called from the thread that renders.
+    */
+  def refresh(): Unit = {
+    val pm = powerMode
+    if (pm != null) {
+      current(0) = pm.getRedFrom
+      current(1) = pm.getRedTo
+      current(2) = pm.getGreenFrom
+      current(3) = pm.getGreenTo
+      current(4) = pm.getBlueFrom
+      current(5) = pm.getBlueTo
+      current(6) = pm.getColorAlpha
+      current(7) = pm.getSparkSize
+      if (sprites.length == 0 || !java.util.Arrays.equals(current, settings)) {
+        System.arraycopy(current, 0, settings, 0, current.length)
+        palette = buildPalette(current)
+        sprites = Array.fill(current(7) + 2)(
+          new Array[BufferedImage](palette.length))
+      }
+    }
+  }
+
+  /**
+    * Returns the stamp for the given palette index and spark diameter.
+    */
+  def sprite(colorIndex: Int, size: Int): BufferedImage = {
+    val s = math.max(1, math.min(size, sprites.length - 1))
+    val c = colorIndex % palette.length
+    if (sprites.length == 0) {
+      rasterize(palette(c), s)
+    } else {
+      var img = sprites(s)(c)
+      if (img == null) {
+        img = rasterize(palette(c), s)
+        sprites(s)(c) = img
+      }
+      img
+    }
+  }
+
+  private def buildPalette(s: Array[Int]): Array[Int] = {
+    val reds = levels(s(0), s(1))
+    val greens = levels(s(2), s(3))
+    val blues = levels(s(4), s(5))
+    val alpha = (Util.alpha(s(6) / 255f) * 255).toInt
+    for {
+      r <- reds
+      g <- greens
+      b <- blues
+    } yield (alpha << 24) | (r << 16) | (g << 8) | b
+  }
+
+  private def levels(from: Int, to: Int): Array[Int] = {
+    if (to <= from) {
+      Array(from)
+    } else {
+      val n = math.min(levelsPerChannel, to - from + 1)
+      Array.tabulate(n)(i => from + ((i + 0.5) * (to - from) / n).toInt)
+    }
+  }
+
+  private def rasterize(argb: Int, size: Int): BufferedImage = {
+    val img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB_PRE)
+    val g2d: Graphics2D = img.createGraphics()
+    g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                         RenderingHints.VALUE_ANTIALIAS_ON)
+    g2d.setColor(new Color(argb, true))
+    g2d.fill(new Ellipse2D.Float(0, 0, size.toFloat, size.toFloat))
+    g2d.dispose()
+    img
+  }
+}
@@ -0,0 +1,72 @@
+package de.ax.powermode.power.heatup
+
+/**
+  * The weighted key strokes of the heatup time window.
+  *
+  * Entries live in a ring buffer of primitive timestamps and weights, in the
+  * order they were added, and the sum of all weights is kept up to date. So
+  * adding, expiring and summing are O(1) per key stroke and do not allocate
+  * once the buffer has grown to the typing rate.
+  */
+class KeyStrokeWindow(initialCapacity: Int = 256) {
+  private var timestamps = new Array[Long](math.max(initialCapacity, 16))
+  private var weights = new Array[Double](timestamps.length)
+  private var head = 0
+  private var count = 0
+  private var sum = 0.0
+
+  def isEmpty: Boolean = synchronized { count == 0 }
+
+  def size: Int = synchronized { count }
+
+  /**
+    * The sum of the weights of all key strokes in the window.
+    */
+  def weightSum: Double = synchronized { if (count == 0) 0.0 else sum }
+
+  def add(timestamp: Long, weight: Double): Unit = synchronized {
+    if (count == timestamps.length) {
+      grow()
+    }
+    val i = (head + count) % timestamps.length
+    timestamps(i) = timestamp
+    weights(i) = weight
+    count += 1
+    sum += weight
+  }
+
+  /**
+    * Drops all key strokes older than `oldestTimestamp`.
+    */
+  def expire(oldestTimestamp: Long): Unit = synchronized {
+    while (count > 0 && timestamps(head) < oldestTimestamp) {
+      sum -= weights(head)
+      head = (head + 1) % timestamps.length
+      count -= 1
+    }
+    if (count == 0) {
+      // do not let rounding errors accumulate
+      sum = 0.0
+    }
+  }
+
+  def clear(): Unit = synchronized {
+    head = 0
+    count = 0
+    sum = 0.0
+  }
+
+  private def grow(): Unit = {
+    val newTimestamps = new Array[Long](timestamps.length * 2)
+    val newWeights = new Array[Double](timestamps.length * 2)
+    var i = 0
+    while (i < count) {
+      newTimestamps(i) = timestamps((head + i) % timestamps.length)
+      newWeights(i) = weights((head + i) % timestamps.length)
+      i += 1
+    }
+    timestamps = newTimestamps
+    weights = newWeights
+    head = 0
+  }
+}
@@ -0,0 +1,82 @@
+package de.ax.powermode.power.heatup
+
+/**
+  * Least-squares slope over the last `capacity` values, updated
+  * incrementally.
+  *
+  * Values are indexed by age: a candidate value passed to [[slopeWith]] has
+  * x = 0, the most recently pushed value x = 1 and so on. Only the sums of y
+  * and x * y are maintained; the sums over x follow from the number of
+  * values. Both queries and pushes are O(1) and do not allocate.
+  */
+class SlopeWindow(val capacity: Int) {
+  private val values = new Array[Double](math.max(capacity, 1))
+  // index of the most recently pushed value
+  private var newest = -1
+  private var count = 0
+  private var sumY = 0.0
+  private var sumXY = 0.0
+
+  def size: Int = count
+
+  /**
+    * The slope of the regression over all values in the window plus
+    * `candidate` at x = 0, or 0 if there are less than two points.
+    */
+  def slopeWith(candidate: Double): Double = {
+    val n = count + 1
+    if (n < 2) {
+      0.0
+    } else {
+      val sumX = count.toDouble * (count + 1) / 2
+      val sumXX = count.toDouble * (count + 1) * (2 * count + 1) / 6
+      val sy = sumY + candidate
+      val denominator = n * sumXX - sumX * sumX
+      (n * sumXY - sumX * sy) / denominator
+    }
+  }
+
+  def push(value: Double): Unit = {
+    if (capacity > 0) {
+      // every value in the window gets one older
+      sumXY += sumY
+      if (count == capacity) {
+        val oldest = values((newest + 1) % capacity)
+        sumXY -= (capacity + 1) * oldest
+        sumY -= oldest
+      } else {
+        count += 1
+      }
+      newest = (newest + 1) % capacity
+      values(newest) = value
+      sumXY += value
+      sumY += value
+      if (newest == 0) {
+        recompute()
+      }
+    }
+  }
+
+  def clear(): Unit = {
+    newest = -1
+    count = 0
+    sumY = 0.0
+    sumXY = 0.0
+  }
+
+  /**
+    * Recomputes the sums from scratch once per wrap of the ring, so that
+    * rounding errors of the incremental updates cannot accumulate.
+    */
+  private def recompute(): Unit = {
+    sumY = 0.0
+    sumXY = 0.0
+    var age = 1
+    while (age <= count) {
+      val v = values(((newest - age + 1) % capacity + capacity) % capacity)
+      sumY += v
+      sumXY += age * v
+      age += 1
+    }
+  }
+}
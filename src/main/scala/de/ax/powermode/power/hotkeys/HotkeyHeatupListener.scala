@@ -1,66 +1,99 @@
 package de.ax.powermode.power.hotkeys
 
 import com.intellij.ide.DataManager
+import com.intellij.openapi.Disposable
 import com.intellij.openapi.actionSystem._
-import com.intellij.openapi.components.ApplicationComponent
-import com.intellij.openapi.keymap.KeymapManager
-import com.intellij.openapi.wm.ToolWindowManager
-import com.intellij.openapi.wm.ex.ToolWindowManagerListener
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.keymap.{Keymap, KeymapManager, KeymapManagerListener}
 import com.intellij.util.{SlowOperations, ThrowableRunnable}
 import de.ax.powermode.Power
+import de.ax.powermode.recording.InputRecorder
 import t.d.E_
 import java.awt._
 import java.awt.event._
-import java.util
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.swing._
 
-class HotkeyHeatupListener extends AWTEventListener with Power {
+/**
+  * Heats up on key events that are shortcuts of the active keymap.
+  *
+  * The shortcuts are kept in a [[KeyStrokeIndex]], which is built on a
+  * pooled thread at startup and rebuilt whenever the keymap changes, so
+  * the EDT only ever probes it.
+  */
+class HotkeyHeatupListener(parent: Disposable)
+    extends AWTEventListener
+    with Power {
 
-  lazy val allActionKeyStrokes: Set[KeyStroke] =
-    actionsToKeyStrokes.values.flatten.toSet
+  @volatile private var keyStrokes = KeyStrokeIndex.empty
+  private val rebuildScheduled = new AtomicBoolean(false)
 
-  lazy val actionsToKeyStrokes = {
-    Map(
-      KeymapManager.getInstance.getActiveKeymap.getActionIds.toList
-        .map(ActionManager.getInstance.getAction)
-        .filter(a => a != null && a.getShortcutSet != null)
-        .map { a =>
-          val keyStrokes = a.getShortcutSet.getShortcuts.toList
-            .filter(_.isKeyboard)
-            .filter(_.isInstanceOf[KeyboardShortcut])
-            .map(_.asInstanceOf[KeyboardShortcut])
-            .flatMap(a => Seq(a.getFirstKeyStroke, a.getSecondKeyStroke))
-          (a, keyStrokes)
-        }: _*)
+  private def rebuild(): Unit = {
+    if (rebuildScheduled.compareAndSet(false, true)) {
+      ApplicationManager.getApplication.executeOnPooledThread(new Runnable {
+        override def run(): Unit = {
+          // changes from now on schedule another rebuild
+          rebuildScheduled.set(false)
+          try {
+            keyStrokes = KeyStrokeIndex(activeKeyStrokes)
+            logger.debug(s"indexed ${keyStrokes.size} shortcut key strokes")
+          } catch {
+            case e: Exception =>
+              logger.debug("could not index shortcuts", e)
+          }
+        }
+      })
+    }
   }
 
-  override def eventDispatched(e: AWTEvent): Unit = {
-    SlowOperations.allowSlowOperations(new ThrowableRunnable[Exception] {
-      override def run(): Unit = {
-        if (powerMode.isEnabled && powerMode.isHotkeyHeatup) {
-          e match {
-            case event: KeyEvent => {
-              if ((event.getModifiersEx & (InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK)) > 0) {
+  private def activeKeyStrokes: Seq[KeyStroke] = {
+    Option(KeymapManager.getInstance.getActiveKeymap).toSeq.flatMap {
+      keymap =>
+        keymap.getActionIds.toSeq
+          .flatMap(id => Option(keymap.getShortcuts(id)).toSeq.flatten)
+          .collect { case s: KeyboardShortcut => s }
+          .flatMap(s => Seq(s.getFirstKeyStroke, s.getSecondKeyStroke))
+          .filter(_ != null)
+    }
+  }
 
-                val eventKeyStroke =
-                  KeyStroke.getKeyStroke(event.getKeyCode, event.getModifiersEx)
-                val isHotkey = allActionKeyStrokes.contains(eventKeyStroke)
-                if (isHotkey) {
-                  powerMode.increaseHeatup(
-                    Option(
-                      DataManager
-                        .getInstance()
-                        .getDataContext(event.getComponent)),
-                    Option(eventKeyStroke))
-                }
+  override def eventDispatched(e: AWTEvent): Unit = {
+    if (powerMode.isEnabled && powerMode.isHotkeyHeatup) {
+      e match {
+        case event: KeyEvent => {
+          if ((event.getModifiersEx & (InputEvent.CTRL_DOWN_MASK | InputEvent.ALT_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK)) > 0 &&
+              keyStrokes.contains(event.getKeyCode, event.getModifiersEx)) {
+            InputRecorder.hotkey(event.getKeyCode, event.getModifiersEx)
+            SlowOperations.allowSlowOperations(new ThrowableRunnable[Exception] {
+              override def run(): Unit = {
+                powerMode.increaseHeatup(
+                  Option(
+                    DataManager
+                      .getInstance()
+                      .getDataContext(event.getComponent)),
+                  Option(
+                    KeyStroke.getKeyStroke(event.getKeyCode,
+                                           event.getModifiersEx)))
               }
-            }
-            case _ =>
+            })
           }
         }
-
+        case _ =>
       }
-    })
+    }
   }
+
+  ApplicationManager.getApplication.getMessageBus
+    .connect(parent)
+    .subscribe(
+      KeymapManager.TOPIC,
+      new KeymapManagerListener {
+        override def activeKeymapChanged(keymap: Keymap): Unit = rebuild()
+
+        override def shortcutChanged(keymap: Keymap, actionId: String): Unit =
+          rebuild()
+      }
+    )
+  rebuild()
   Toolkit.getDefaultToolkit.addAWTEventListener(this, AWTEvent.KEY_EVENT_MASK)
 }
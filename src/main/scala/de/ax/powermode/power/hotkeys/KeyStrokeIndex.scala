@@ -0,0 +1,69 @@
+package de.ax.powermode.power.hotkeys
+
+import java.awt.event.InputEvent
+import javax.swing.KeyStroke
+
+object KeyStrokeIndex {
+  // the modifiers a shortcut is told apart by
+  private val modifierMask = InputEvent.SHIFT_DOWN_MASK |
+    InputEvent.CTRL_DOWN_MASK |
+    InputEvent.META_DOWN_MASK |
+    InputEvent.ALT_DOWN_MASK |
+    InputEvent.ALT_GRAPH_DOWN_MASK
+
+  // marks a free slot; no key packs to it, as the modifiers are masked
+  private val Free = -1
+
+  val empty = new KeyStrokeIndex(Array(Free), 0)
+
+  /**
+    * Packs a key code and extended modifiers into one int.
+    */
+  def key(keyCode: Int, modifiersEx: Int): Int =
+    (keyCode << 16) | (modifiersEx & modifierMask)
+
+  def key(keyStroke: KeyStroke): Int =
+    key(keyStroke.getKeyCode, keyStroke.getModifiers)
+
+  def apply(keyStrokes: Iterable[KeyStroke]): KeyStrokeIndex = {
+    val keys = keyStrokes.iterator.map(key).toArray.distinct
+    // at most half full, so that a lookup mostly ends at its first slot
+    var capacity = 2
+    while (capacity < keys.length * 2) {
+      capacity *= 2
+    }
+    val slots = Array.fill(capacity)(Free)
+    val mask = capacity - 1
+    keys.foreach { k =>
+      var i = slot(k, mask)
+      while (slots(i) != Free) {
+        i = (i + 1) & mask
+      }
+      slots(i) = k
+    }
+    new KeyStrokeIndex(slots, mask)
+  }
+
+  private def slot(key: Int, mask: Int): Int =
+    ((key * 0x9e3779b9) >>> 16) & mask
+}
+
+/**
+  * An immutable open addressing hash set of packed key strokes, so that
+  * checking a key event for a shortcut neither allocates nor walks the
+  * keymap.
+  */
+final class KeyStrokeIndex private (slots: Array[Int], mask: Int) {
+  import KeyStrokeIndex._
+
+  def size: Int = slots.count(_ != Free)
+
+  def contains(keyCode: Int, modifiersEx: Int): Boolean = {
+    val k = key(keyCode, modifiersEx)
+    var i = slot(k, mask)
+    while (slots(i) != Free && slots(i) != k) {
+      i = (i + 1) & mask
+    }
+    slots(i) == k
+  }
+}
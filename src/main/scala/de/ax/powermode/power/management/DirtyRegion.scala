@@ -0,0 +1,83 @@
+package de.ax.powermode.power.management
+
+import javax.swing.JComponent
+
+/**
+  * A bounded set of rectangles that need to be repainted.
+  *
+  * A new rectangle is merged into the existing one whose area grows the
+  * least, unless it is cheaper to keep it separate and there is room left.
+  * Adding does not allocate.
+  */
+class DirtyRegion(maxRectangles: Int = 8) {
+  private val x1s = new Array[Int](maxRectangles)
+  private val y1s = new Array[Int](maxRectangles)
+  private val x2s = new Array[Int](maxRectangles)
+  private val y2s = new Array[Int](maxRectangles)
+  private var count = 0
+
+  def isEmpty: Boolean = count == 0
+
+  def nonEmpty: Boolean = !isEmpty
+
+  def clear(): Unit = {
+    count = 0
+  }
+
+  def add(x: Int, y: Int, width: Int, height: Int): Unit = {
+    if (width > 0 && height > 0) {
+      val x2 = x + width
+      val y2 = y + height
+      var best = -1
+      var bestGrowth = Long.MaxValue
+      var i = 0
+      while (i < count) {
+        val growth = area(math.min(x1s(i), x),
+                          math.min(y1s(i), y),
+                          math.max(x2s(i), x2),
+                          math.max(y2s(i), y2)) -
+          area(x1s(i), y1s(i), x2s(i), y2s(i))
+        if (growth < bestGrowth) {
+          best = i
+          bestGrowth = growth
+        }
+        i += 1
+      }
+      if (best >= 0 &&
+          (bestGrowth <= area(x, y, x2, y2) || count == maxRectangles)) {
+        x1s(best) = math.min(x1s(best), x)
+        y1s(best) = math.min(y1s(best), y)
+        x2s(best) = math.max(x2s(best), x2)
+        y2s(best) = math.max(y2s(best), y2)
+      } else {
+        x1s(count) = x
+        y1s(count) = y
+        x2s(count) = x2
+        y2s(count) = y2
+        count += 1
+      }
+    }
+  }
+
+  def addAll(other: DirtyRegion): Unit = {
+    var i = 0
+    while (i < other.count) {
+      add(other.x1s(i),
+          other.y1s(i),
+          other.x2s(i) - other.x1s(i),
+          other.y2s(i) - other.y1s(i))
+      i += 1
+    }
+  }
+
+  def repaint(component: JComponent): Unit = {
+    var i = 0
+    while (i < count) {
+      component.repaint(x1s(i), y1s(i), x2s(i) - x1s(i), y2s(i) - y1s(i))
+      i += 1
+    }
+  }
+
+  private def area(x1: Int, y1: Int, x2: Int, y2: Int): Long =
+    (x2 - x1).toLong * (y2 - y1)
+}
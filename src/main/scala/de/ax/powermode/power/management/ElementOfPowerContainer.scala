@@ -18,15 +18,21 @@ package de.ax.powermode.power.management
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.event._
 import com.intellij.openapi.editor.{Editor, ScrollingModel}
-import de.ax.powermode.power.ElementOfPower
+import de.ax.powermode.power.{ElementOfPower, PowerRandom}
 import de.ax.powermode.power.element.{
+  ElementFrames,
   PowerBam,
   PowerFlame,
   PowerIndicator,
-  PowerSpark
+  PowerSparkFrames,
+  PowerSparkPool,
+  PowerSparkSprites
 }
+import de.ax.powermode.power.management.ElementOfPowerContainer._
+import de.ax.powermode.metrics.{Histogram, PowerMetrics}
+import de.ax.powermode.power.sound.SoundEffects
+import de.ax.powermode.recording.InputRecorder
 import de.ax.powermode.{Power, Util}
-import powermode.PowerColor
 import squants.Dimensionless
 import squants.DimensionlessConversions.{
   DimensionlessConversions,
@@ -42,14 +48,31 @@ import squants.time.{Frequency, Time, TimeUnit}
 
 import scala.language.postfixOps
 import java.awt.event.{ComponentEvent, ComponentListener}
-import java.awt.{Graphics, Point, Rectangle}
+import java.awt.{Color, Graphics, Graphics2D, Point, Rectangle}
 import java.util.TimerTask
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.ConcurrentLinkedQueue
 import javax.swing._
+import scala.collection.mutable
 import scala.jdk.CollectionConverters._
 import scala.language.postfixOps
 
 object ElementOfPowerContainer {
   private val logger = Logger.getInstance(this.getClass)
+
+  // carets spawned per container and frame, however many were typed at
+  private val maxSpawnsPerFrame = 32
+
+  private val ids = new AtomicInteger(0)
+
+  /**
+    * Something to add to a container on the next frame.
+    */
+  sealed trait Spawn
+
+  case class SpawnElement(elementOfPower: ElementOfPower,
+                          scrollPosition: (Int, Int))
+      extends Spawn
 }
 
 /**
@@ -67,12 +90,59 @@ class ElementOfPowerContainer(editor: Editor)
   myParent.addComponentListener(this)
 
   val shakeComponents = Seq(editor.getComponent, editor.getContentComponent)
-  var elementsOfPower = Seq.empty[(ElementOfPower, (Int, Int))]
+
+  // identifies this container in the input event queue
+  val id: Int = ids.getAndIncrement()
+
+  // filled by the EDT, drained by the update thread
+  private val spawnQueue = new ConcurrentLinkedQueue[Spawn]()
+  // owned by the update thread
+  private val simulatedElements =
+    mutable.ArrayBuffer.empty[(ElementOfPower, (Int, Int))]
+  private val sparks = new PowerSparkPool()
+  // live elements by type and live sparks, published by the update thread
+  // for the metrics and the debug overlay
+  @volatile private var elementKinds = Map.empty[String, Int]
+  @volatile private var sparkCount = 0
+  // published by the update thread for rendering
+  private val elementFrames = new ElementFrames()
+  private val sparkFrames = new PowerSparkFrames()
+  // reused for every keystroke, owned by the update thread
+  private var powerIndicator: PowerIndicator = null
+  // spawns requested since the last frame, owned by the update thread;
+  // beyond the budget, a uniform sample of the positions is kept
+  private val requestedX = new Array[Int](maxSpawnsPerFrame)
+  private val requestedY = new Array[Int](maxSpawnsPerFrame)
+  private var requestedCount = 0
+  private var indicatorRequested = false
+  private var lastIndicator = 0L
+  // where the debug overlay is drawn, in the visible area
+  private val debugOverlay = new Rectangle(8, 8, 240, 90)
+  // the visible area of the editor, whose location is the scroll position;
+  // captured on the EDT for the update thread and never changed once set
+  @volatile private var visibleArea = new Rectangle()
+  private val afterSpawnInUI: Runnable = () => {
+    this.setBounds(getMyBounds)
+    if (powerMode.isShakeEnabled) {
+      doShake(shakeComponents)
+    }
+  }
   var lastShake = System.currentTimeMillis()
   var shakeData = Option.empty[(Int, Int, Int, Int)]
 
   var lastUpdate = System.currentTimeMillis()
 
+  private var hadElements = false
+  private var dirtyRegion = new DirtyRegion()
+  private var previousDirtyRegion = new DirtyRegion()
+  @volatile private var animatedLastFrame = false
+
+  captureVisibleArea()
+  editor.getScrollingModel.addVisibleAreaListener(new VisibleAreaListener {
+    override def visibleAreaChanged(e: VisibleAreaEvent): Unit =
+      captureVisibleArea()
+  })
+
   var lastPositions = Seq.empty[(Point, Point)]
   editor.getCaretModel.addCaretListener(new CaretListener {
 
@@ -96,6 +166,9 @@ class ElementOfPowerContainer(editor: Editor)
 
   editor.getDocument.addDocumentListener(new DocumentListener {
     override def documentChanged(e: DocumentEvent): Unit = {
+      InputRecorder.documentChanged(e.getNewFragment,
+                                    e.getOldFragment,
+                                    lastPositions.size)
       initializeCaretBam(e)
     }
   })
@@ -142,6 +215,9 @@ class ElementOfPowerContainer(editor: Editor)
                                 new Point(math.min(0, b.x), math.min(0, b.y)),
                                 width)
         }
+        SoundEffects.trigger(SoundEffects.Bam)
+        powerMode.maybeElementOfPowerContainerManager.foreach(
+          _.wakeAnimation())
       })
     }
   }
@@ -151,50 +227,195 @@ class ElementOfPowerContainer(editor: Editor)
       Util.getPoint(caret.getVisualPosition, caret.getEditor))
   }
 
+  /**
+    * Advances the simulation by one frame. Must only be called from the
+    * update thread.
+    */
   def updateElementsOfPower(): Unit = {
     var delta = (System.currentTimeMillis() - lastUpdate)
-    val value = (1000.0 / powerMode.frameRate.toHertz)
+    val value =
+      (1000.0 / (powerMode.frameRate.toHertz * QualityGovernor.quality))
     if (delta > value * 2) {
       //smoothen movement when frame rate drops
       delta = 16
     }
     lastUpdate = System.currentTimeMillis()
     val db: Double = 1000.0 / 16
-    if (elementsOfPower.nonEmpty) {
-      elementsOfPower =
-        elementsOfPower.filterNot(p => p._1.update((delta / db).toFloat))
-      repaint()
+    val hadSparks = sparks.nonEmpty
+    spawnRequested()
+    var elementsChanged = spawnQueued()
+    var i = 0
+    while (i < simulatedElements.length) {
+      if (simulatedElements(i)._1.update((delta / db).toFloat)) {
+        simulatedElements.remove(i)
+        elementsChanged = true
+      } else {
+        i += 1
+      }
+    }
+    if (elementsChanged) {
+      elementKinds = simulatedElements
+        .groupBy(_._1.getClass.getSimpleName)
+        .map { case (kind, elements) => kind -> elements.size }
+    }
+    if (sparks.nonEmpty) {
+      sparks.update((delta / db).toFloat)
+    }
+    if (hadSparks || sparks.nonEmpty) {
+      sparks.publish(sparkFrames)
+      sparkCount = sparks.size
     }
+    val (scrollX, scrollY) = getScrollPosition
+    dirtyRegion.clear()
+    if (hadElements || simulatedElements.nonEmpty) {
+      publishElements(scrollX, scrollY)
+    }
+    hadElements = simulatedElements.nonEmpty
+    repaintDirtyRegion(scrollX, scrollY)
+    animatedLastFrame = hasAnimatedElements
   }
 
-  def addPowerIndicator(): Unit = {
-    val indicatorWidth = 100
-    elementsOfPower :+= (PowerIndicator(
-      (getMyBounds.width - 20 - indicatorWidth).toFloat,
-      (getMyBounds.height - 20 - indicatorWidth).toFloat,
-      indicatorWidth.toFloat,
-      indicatorWidth.toFloat,
-      1000L,
-      editor
-    ), getScrollPosition)
+  /**
+    * Asks for sparks and flames at `x`, `y` on the next frame. Must only be
+    * called from the update thread.
+    */
+  def requestSpawn(x: Int, y: Int): Unit = {
+    val slot =
+      if (requestedCount < maxSpawnsPerFrame) requestedCount
+      else PowerRandom.nextInt(requestedCount + 1)
+    if (slot < maxSpawnsPerFrame) {
+      requestedX(slot) = x
+      requestedY(slot) = y
+    }
+    requestedCount += 1
   }
 
-  def initializeAnimation(point: Point): Unit = {
+  /**
+    * Asks for the power indicator on the next frame. Must only be called
+    * from the update thread.
+    */
+  def requestIndicator(): Unit = {
+    indicatorRequested = true
+  }
 
-    this.setBounds(getMyBounds)
+  /**
+    * Spawns what was requested since the last frame as one batch, and lets
+    * the EDT shake once for all of it.
+    */
+  private def spawnRequested(): Unit = {
+    val quality = QualityGovernor.quality
+    // at lower quality the indicator follows keystrokes less often
+    val indicatorInterval =
+      ((1 - quality) / (1 - QualityGovernor.minQuality) * 500).toLong
+    if (indicatorRequested &&
+        System.currentTimeMillis() - lastIndicator >= indicatorInterval) {
+      indicatorRequested = false
+      lastIndicator = System.currentTimeMillis()
+      addPowerIndicator()
+    }
+    if (requestedCount > 0) {
+      val budget = math.max(1, (maxSpawnsPerFrame * quality).toInt)
+      val n = math.min(requestedCount, budget)
+      PowerMetrics.spawns.add(n)
+      PowerMetrics.droppedSpawns.add(requestedCount - n)
+      requestedCount = 0
+      val (scrollX, scrollY) = getScrollPosition
+      var i = 0
+      while (i < n) {
+        if (powerMode.isSparksEnabled) {
+          addSparks(requestedX(i), requestedY(i), scrollX, scrollY)
+        }
+        if (powerMode.isFlamesEnabled) {
+          addFlames(new Point(requestedX(i), requestedY(i)))
+        }
+        i += 1
+      }
+      SwingUtilities.invokeLater(afterSpawnInUI)
+    }
+  }
 
-    if (powerMode.isSparksEnabled) {
-      addSparks(point)
+  /**
+    * Moves everything spawned since the last frame into the
+    * simulation. Returns whether elements other than sparks were added.
+    */
+  private def spawnQueued(): Boolean = {
+    var elementsAdded = false
+    var spawn = spawnQueue.poll()
+    while (spawn != null) {
+      spawn match {
+        case SpawnElement(elementOfPower, scrollPosition) =>
+          simulatedElements += ((elementOfPower, scrollPosition))
+          elementsAdded = true
+      }
+      spawn = spawnQueue.poll()
     }
-    if (powerMode.isFlamesEnabled) {
-      addFlames(point)
+    elementsAdded
+  }
+
+  /**
+    * Whether another update is needed, either to move live elements or to
+    * erase the ones that died during the last update.
+    */
+  def isAnimating: Boolean =
+    animatedLastFrame || hasAnimatedElements || !spawnQueue.isEmpty ||
+      requestedCount > 0 || indicatorRequested
+
+  private def hasAnimatedElements: Boolean =
+    sparks.nonEmpty || simulatedElements.exists(_._1.isAnimated)
+
+  /**
+    * Writes what the elements show into the back frame, adds it to the
+    * dirty region and publishes it.
+    */
+  private def publishElements(scrollX: Int, scrollY: Int): Unit = {
+    val frame = elementFrames.back
+    frame.clear()
+    var i = 0
+    while (i < simulatedElements.length) {
+      val (elementOfPower, (x, y)) = simulatedElements(i)
+      elementOfPower.draw(frame, x, y)
+      i += 1
     }
+    frame.addBounds(dirtyRegion, scrollX, scrollY)
+    elementFrames.publish()
+  }
 
-    if (powerMode.isShakeEnabled) {
-      doShake(shakeComponents)
+  /**
+    * Repaints what the live elements cover now, plus what they covered on
+    * the previous frame so that moved and dead elements get erased.
+    */
+  private def repaintDirtyRegion(scrollX: Int, scrollY: Int): Unit = {
+    sparks.addBounds(dirtyRegion, scrollX, scrollY)
+    if (powerMode.isDebugOverlayEnabled) {
+      dirtyRegion.add(debugOverlay.x,
+                      debugOverlay.y,
+                      debugOverlay.width,
+                      debugOverlay.height)
+    }
+    if (dirtyRegion.nonEmpty || previousDirtyRegion.nonEmpty) {
+      previousDirtyRegion.addAll(dirtyRegion)
+      previousDirtyRegion.repaint(this)
+      val swap = previousDirtyRegion
+      previousDirtyRegion = dirtyRegion
+      dirtyRegion = swap
     }
-    repaint()
+  }
 
+  def addPowerIndicator(): Unit = {
+    val indicatorWidth = 100
+    val area = visibleArea
+    val x = (area.width - 20 - indicatorWidth).toFloat
+    val y = (area.height - 20 - indicatorWidth).toFloat
+    if (powerIndicator != null && powerIndicator.alive) {
+      powerIndicator.keyStroke(x, y)
+    } else {
+      powerIndicator = PowerIndicator(x,
+                                      y,
+                                      indicatorWidth.toFloat,
+                                      indicatorWidth.toFloat,
+                                      1000L)
+      spawnQueue.offer(SpawnElement(powerIndicator, getScrollPosition))
+    }
   }
 
   def initializeAnimation(a: Point, b: Point, lineWidth: Double): Unit = {
@@ -209,74 +430,76 @@ class ElementOfPowerContainer(editor: Editor)
     if (b.y - y.abs < dim) {
       y = y - dim / 2
     }
-    elementsOfPower :+= (PowerBam(
-      math.max(0, x).toFloat,
-      math.max(0, y).toFloat,
-      dim.toFloat,
-      dim.toFloat,
-      (powerMode.bamLife * powerMode.valueFactor).toMilliseconds.toLong), getScrollPosition)
+    spawnQueue.offer(
+      SpawnElement(
+        PowerBam(
+          math.max(0, x).toFloat,
+          math.max(0, y).toFloat,
+          dim.toFloat,
+          dim.toFloat,
+          (powerMode.bamLife * powerMode.valueFactor).toMilliseconds.toLong),
+        getScrollPosition))
   }
 
   def addFlames(point: Point): Unit = {
     val base = 0.3
-    val wh = (powerMode.maxFlameSize * base +
-      ((math.random * powerMode.maxFlameSize * (1 - base)) * powerMode.valueFactor)).toInt
+    val wh = ((powerMode.maxFlameSize * base +
+      ((PowerRandom.nextDouble() * powerMode.maxFlameSize * (1 - base)) * powerMode.valueFactor)) *
+      QualityGovernor.quality).toInt
     val initLife =
       (powerMode.maxFlameLife * powerMode.valueFactor).toMilliseconds.toInt
     if (initLife > 100) {
-      elementsOfPower :+= (PowerFlame(point.x + 5,
-                                      point.y - 1,
-                                      wh,
-                                      wh,
-                                      initLife,
-                                      true), getScrollPosition)
-      elementsOfPower :+= (PowerFlame(point.x + 5,
-                                      point.y + 15,
-                                      wh,
-                                      wh,
-                                      initLife,
-                                      false), getScrollPosition)
+      spawnQueue.offer(
+        SpawnElement(
+          PowerFlame(point.x + 5, point.y - 1, wh, wh, initLife, true),
+          getScrollPosition))
+      spawnQueue.offer(
+        SpawnElement(
+          PowerFlame(point.x + 5, point.y + 15, wh, wh, initLife, false),
+          getScrollPosition))
+      SoundEffects.trigger(SoundEffects.Whoosh)
     }
   }
 
-  def addSparks(point: Point): Unit = {
-    for (i <- 0 to (powerMode.sparkCount * powerMode.valueFactor).toInt) {
-      addSpark(point.x, point.y)
+  private def addSparks(x: Int, y: Int, scrollX: Int, scrollY: Int): Unit = {
+    val count =
+      powerMode.sparkCount * powerMode.valueFactor * QualityGovernor.quality
+    for (i <- 0 to count.toInt) {
+      addSpark(x, y, scrollX, scrollY)
     }
   }
 
-  def addSpark(x: Int, y: Int): Unit = {
-    val dx
-      : Double = (Math.random * 2) * (if (Math.random > 0.5) -1 else 1) * powerMode.sparkVelocityFactor
-    val dy: Double = ((Math.random * -3) - 1) * powerMode.sparkVelocityFactor
-    val size = ((Math.random * powerMode.sparkSize) + 1).toInt
-    val life = Math.random() * powerMode.getSparkLife * powerMode.valueFactor
-    val powerSpark = PowerSpark(x.toFloat,
-                                y.toFloat,
-                                dx.toFloat,
-                                dy.toFloat,
-                                size.toFloat,
-                                life.toLong,
-                                genNextColor,
-                                powerMode.gravityFactor.toFloat)
-    elementsOfPower :+= (powerSpark, getScrollPosition)
+  private def addSpark(x: Int, y: Int, scrollX: Int, scrollY: Int): Unit = {
+    val dx: Double = (PowerRandom.nextDouble() * 2) *
+      (if (PowerRandom.nextDouble() > 0.5) -1 else 1) * powerMode.sparkVelocityFactor
+    val dy: Double = ((PowerRandom.nextDouble() * -3) - 1) * powerMode.sparkVelocityFactor
+    val size = ((PowerRandom.nextDouble() * powerMode.sparkSize) + 1).toInt
+    val life = PowerRandom.nextDouble() * powerMode.getSparkLife * powerMode.valueFactor
+    sparks.spawn(
+      x.toFloat,
+      y.toFloat,
+      dx.toFloat,
+      dy.toFloat,
+      size.toFloat,
+      life.toLong,
+      genNextColor,
+      powerMode.gravityFactor.toFloat,
+      scrollX,
+      scrollY
+    )
   }
 
-  def genNextColor: PowerColor =
-    (getColorPart(powerMode.getRedFrom, powerMode.getRedTo),
-     getColorPart(powerMode.getGreenFrom, powerMode.getGreenTo),
-     getColorPart(powerMode.getBlueFrom, powerMode.getBlueTo),
-     powerMode.getColorAlpha / 255f)
+  def genNextColor: Int = PowerSparkSprites.randomColorIndex
 
-  def getColorPart(from: Int, to: Int): Float = {
-    (((Math.random() * (to - from)) + from) / 255).toFloat
+  /**
+    * The scroll position as of the last visible area the EDT captured, so
+    * that it is safe to call from the update thread.
+    */
+  def getScrollPosition: (Int, Int) = {
+    val area = visibleArea
+    (area.x, area.y)
   }
 
-  def getScrollPosition = (
-    editor.getScrollingModel.getHorizontalScrollOffset,
-    editor.getScrollingModel.getVerticalScrollOffset
-  )
-
   def doShake(myShakeComponents: Seq[JComponent]): Unit = {
     if (Util.editorOk(editor, 100)) {
       shakeData = shakeData match {
@@ -308,8 +531,9 @@ class ElementOfPowerContainer(editor: Editor)
   }
 
   def generateShakeOffset: Int = {
-    val range = powerMode.shakeRange * powerMode.valueFactor
-    (range - (Math.random * 2 * range)).toInt
+    val range =
+      powerMode.shakeRange * powerMode.valueFactor * QualityGovernor.quality
+    (range - (PowerRandom.nextDouble() * 2 * range)).toInt
   }
 
   def componentResized(e: ComponentEvent): Unit = {
@@ -322,9 +546,15 @@ class ElementOfPowerContainer(editor: Editor)
     logger.trace("Moved")
   }
 
-  def getMyBounds: Rectangle = {
+  /**
+    * The visible area of the editor. Must only be called from the EDT.
+    */
+  def getMyBounds: Rectangle = new Rectangle(captureVisibleArea())
+
+  private def captureVisibleArea(): Rectangle = {
     val area = editor.getScrollingModel.getVisibleArea
     val rectangle = new Rectangle(area.x, area.y, area.width, area.height)
+    visibleArea = rectangle
     rectangle
   }
 
@@ -340,7 +570,51 @@ class ElementOfPowerContainer(editor: Editor)
           shakeData.get._1.abs < 50 && shakeData.get._2.abs < 50) {
         doShake(Seq(editor.getComponent))
       }
+      val paintStarted = System.nanoTime()
       renderElementsOfPower(g)
+      val paintNanos = System.nanoTime() - paintStarted
+      PowerMetrics.paint.record(paintNanos)
+      QualityGovernor.recordPaint(paintNanos)
+      if (powerMode.isDebugOverlayEnabled) {
+        renderDebugOverlay(g)
+      }
+    }
+  }
+
+  /**
+    * Live elements by type, for the metrics. Safe to call from any thread.
+    */
+  def elementCounts: Map[String, Int] =
+    elementKinds.updated("PowerSpark", sparkCount)
+
+  private def renderDebugOverlay(g: Graphics): Unit = {
+    def timing(name: String, h: Histogram): String = {
+      val p50 = h.percentile(0.5) / 1000.0
+      val p99 = h.percentile(0.99) / 1000.0
+      f"$name p50 $p50%.0fµs p99 $p99%.0fµs"
+    }
+    val jitter = PowerMetrics.frameJitter.percentile(0.99) / 1000.0
+    val lines = Seq(
+      timing("update", PowerMetrics.updateTick),
+      timing("paint", PowerMetrics.paint),
+      f"jitter p99 $jitter%.0fµs",
+      s"elements ${elementKinds.values.sum} sparks $sparkCount",
+      f"quality ${QualityGovernor.quality}%.2f"
+    )
+    val g2d = g.create().asInstanceOf[Graphics2D]
+    try {
+      g2d.setColor(new Color(0, 0, 0, 160))
+      g2d.fill(debugOverlay)
+      g2d.setColor(Color.WHITE)
+      val lineHeight = debugOverlay.height / lines.size
+      lines.zipWithIndex.foreach {
+        case (line, i) =>
+          g2d.drawString(line,
+                         debugOverlay.x + 4,
+                         debugOverlay.y + lineHeight * (i + 1) - 4)
+      }
+    } finally {
+      g2d.dispose()
     }
   }
 
@@ -351,12 +625,8 @@ class ElementOfPowerContainer(editor: Editor)
       scrollingModel.getVerticalScrollOffset
     )
 
-    elementsOfPower.foreach { pp =>
-      val (elementOfPower, (x, y)) = pp
-      val dxx = x - xyNew._1
-      val dyy = y - xyNew._2
-      elementOfPower.render(g, dxx, dyy)
-    }
+    elementFrames.acquire().render(g, xyNew._1, xyNew._2)
+    sparkFrames.acquire().render(g, xyNew._1, xyNew._2)
 
   }
 }
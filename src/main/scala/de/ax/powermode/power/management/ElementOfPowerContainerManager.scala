@@ -29,12 +29,22 @@ import com.intellij.openapi.editor.event.{
 }
 import com.intellij.openapi.fileEditor.FileEditorManager
 import com.intellij.openapi.project.Project
+import de.ax.powermode.metrics.PowerMetrics
 import de.ax.powermode.power.sound.PowerSound
 import de.ax.powermode.{Power, PowerMode, Util}
 
 import java.awt._
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{
+  ConcurrentHashMap,
+  Executors,
+  RejectedExecutionException,
+  ScheduledExecutorService,
+  TimeUnit
+}
 import javax.swing._
 import scala.collection.mutable
+import scala.jdk.CollectionConverters._
 import scala.language.postfixOps
 import scala.util.{Failure, Success, Try}
 
@@ -53,8 +63,27 @@ class ElementOfPowerContainerManager extends EditorFactoryListener with Power {
     }
   }
 
+  // changed and read on the EDT only
   val elementsOfPowerContainers =
     mutable.Map.empty[Editor, ElementOfPowerContainer]
+  // the same containers, for the animation thread
+  private val containersById =
+    new ConcurrentHashMap[Integer, ElementOfPowerContainer]()
+
+  // typed, caret and hotkey events on their way to the animation thread
+  private val inputEvents = new InputEventQueue(4096)
+  private val inputConsumer = new InputEventQueue.Consumer {
+    override def accept(kind: Int, target: Int, x: Int, y: Int): Unit = {
+      val container = containersById.get(target)
+      if (container != null) {
+        kind match {
+          case InputEventQueue.Spawn     => container.requestSpawn(x, y)
+          case InputEventQueue.Indicator => container.requestIndicator()
+          case _                         =>
+        }
+      }
+    }
+  }
 
   private lazy val triedSound: Try[PowerSound] =
     powerMode.mediaPlayerExists.flatMap { _ =>
@@ -79,63 +108,134 @@ class ElementOfPowerContainerManager extends EditorFactoryListener with Power {
       maybeProject.headOption.foreach(p => {
         val textEditor: Editor =
           FileEditorManager.getInstance(p).getSelectedTextEditor
-        SwingUtilities.invokeLater(() => {
-          elementsOfPowerContainers
-            .get(textEditor)
-            .foreach(_.addPowerIndicator())
-        })
+        elementsOfPowerContainers
+          .get(textEditor)
+          .foreach { c =>
+            inputEvents.offer(InputEventQueue.Indicator, c.id, 0, 0)
+          }
+        wakeAnimation()
       })
     }
   }
 
-  val elementsOfPowerUpdateThread = new Thread(new Runnable() {
-    def run: Unit = {
-      while (true) {
-        try {
-          if (powerMode != null) {
-            powerMode.reduceHeatup
-            updateSound
-            updateContainers
-            try {
-              Thread.sleep((1000 / powerMode.frameRate.toHertz) toInt)
-            } catch {
-              case ignored: InterruptedException => {}
-            }
-          }
-        } catch {
-          case e: Throwable => PowerMode.logger.debug(e.getMessage, e)
-        }
-      }
-    }
+  private val animationExecutor: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor((r: Runnable) => {
+      val thread = new Thread(r, "Power Mode II animation")
+      thread.setDaemon(true)
+      thread
+    })
+
+  private val animationScheduled = new AtomicBoolean(false)
+  // when the scheduled tick should run, to measure the frame jitter
+  @volatile private var tickDue = System.nanoTime()
 
-    def updateContainers: Unit = {
-      elementsOfPowerContainers.values.foreach(_.updateElementsOfPower())
+  /**
+    * Starts the animation clock if it is parked. Must be called after
+    * anything that needs animating was added, e.g. on input events.
+    */
+  def wakeAnimation(): Unit = {
+    if (animationScheduled.compareAndSet(false, true)) {
+      scheduleTick(0)
     }
+  }
 
-    var soundErrorLogged = System.currentTimeMillis()
+  private def scheduleTick(delayMillis: Long): Unit = {
+    tickDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)
+    try {
+      animationExecutor.schedule((() => tick()): Runnable,
+                                 delayMillis,
+                                 TimeUnit.MILLISECONDS)
+    } catch {
+      case e: RejectedExecutionException =>
+        logger.debug("animation clock already disposed", e)
+        animationScheduled.set(false)
+    }
+  }
 
-    def updateSound: Unit = {
+  private def tick(): Unit = {
+    PowerMetrics.frameJitter.record(math.abs(System.nanoTime() - tickDue))
+    var rescheduled = false
+    try {
+      if (powerMode != null) {
+        powerMode.reduceHeatup
+        inputEvents.drain(inputConsumer)
+        updateSound
+        val updateStarted = System.nanoTime()
+        updateContainers
+        val updateNanos = System.nanoTime() - updateStarted
+        PowerMetrics.updateTick.record(updateNanos)
+        QualityGovernor.endFrame(updateNanos)
+      }
+      if (isAnimating) {
+        scheduleTick(
+          (1000 / (powerMode.frameRate.toHertz * QualityGovernor.quality)).toLong)
+        rescheduled = true
+      }
+    } catch {
+      case e: Throwable => PowerMode.logger.debug(e.getMessage, e)
+    } finally {
+      if (!rescheduled) {
+        // park, so that the next input wakes the clock again
+        animationScheduled.set(false)
+      }
+    }
+    if (!rescheduled) {
+      // do not miss a wake-up that raced with this tick
       try {
-        if (powerMode.isEnabled &&
-            powerMode.soundsFolder.exists(f => f.exists() && f.isDirectory)
-            && powerMode.isSoundsPlaying) {
-          if (sound.isFailure && soundErrorLogged + 5000 < System
-                .currentTimeMillis()) {
-            logger.debug(sound.failed.get.getMessage, sound.failed.get)
-            soundErrorLogged += 1
-          }
-          sound.foreach(_.play())
-        } else {
-          sound.foreach(_.stop())
+        if (isAnimating) {
+          wakeAnimation()
         }
-        sound.foreach(_.setVolume(powerMode.valueFactor))
       } catch {
-        case e: Throwable =>
-          logger.debug(e.getMessage, e)
+        case e: Throwable => PowerMode.logger.debug(e.getMessage, e)
+      }
+    }
+  }
+
+  /**
+    * Whether the clock has to keep running: elements are alive, heatup is
+    * still decaying or music is supposed to play.
+    */
+  private def isAnimating: Boolean = {
+    val pm = powerMode
+    pm != null && (
+      inputEvents.nonEmpty ||
+      containersById.values().asScala.exists(_.isAnimating) ||
+      pm.isEnabled && (!pm.isHeatupSettled || isSoundExpected)
+    )
+  }
+
+  // from the playlist, which the FolderWatcher keeps up to date
+  private def isSoundExpected: Boolean = {
+    powerMode.isEnabled &&
+    powerMode.isSoundsPlaying &&
+    powerMode.soundsFolder.isDefined &&
+    sound.toOption.exists(_.hasTracks)
+  }
+
+  private def updateContainers: Unit = {
+    containersById.values().forEach(_.updateElementsOfPower())
+  }
+
+  private var soundErrorLogged = System.currentTimeMillis()
+
+  private def updateSound: Unit = {
+    try {
+      if (isSoundExpected) {
+        if (sound.isFailure && soundErrorLogged + 5000 < System
+              .currentTimeMillis()) {
+          logger.debug(sound.failed.get.getMessage, sound.failed.get)
+          soundErrorLogged += 1
+        }
+        sound.foreach(_.play())
+      } else {
+        sound.foreach(_.stop())
       }
+      sound.foreach(_.setVolume(powerMode.valueFactor))
+    } catch {
+      case e: Throwable =>
+        logger.debug(e.getMessage, e)
     }
-  })
-  elementsOfPowerUpdateThread.start()
+  }
 
   override def editorCreated(event: EditorFactoryEvent): Unit = {
     val editor: Editor = event.getEditor
@@ -143,31 +243,47 @@ class ElementOfPowerContainerManager extends EditorFactoryListener with Power {
       Util.isActualEditor(editor)
     }.getOrElse(false)
     if (isActualEditor) {
-      elementsOfPowerContainers
-        .put(editor, new ElementOfPowerContainer(editor))
+      val container = new ElementOfPowerContainer(editor)
+      elementsOfPowerContainers.put(editor, container)
+      containersById.put(container.id, container)
     }
   }
 
   override def editorReleased(event: EditorFactoryEvent): Unit = {
-    elementsOfPowerContainers.remove(event.getEditor)
+    elementsOfPowerContainers
+      .remove(event.getEditor)
+      .foreach(c => containersById.remove(c.id))
   }
 
+  /**
+    * Queues sparks and flames at `pos` in `editor`. The animation thread
+    * spawns everything queued for an editor as one batch per frame, so
+    * typing with many carets does not flood the EDT.
+    */
   def initializeAnimation(editor: Editor, pos: Point): Unit = {
     if (powerMode.isEnabled) {
-      SwingUtilities.invokeLater(new Runnable() {
-        def run: Unit = {
-          initializeInUI(editor, pos)
+      elementsOfPowerContainers
+        .get(editor)
+        .foreach { c =>
+          inputEvents.offer(InputEventQueue.Spawn, c.id, pos.x, pos.y)
         }
-      })
+      wakeAnimation()
     }
   }
 
-  private def initializeInUI(editor: Editor, pos: Point): Unit = {
-    elementsOfPowerContainers.get(editor).foreach(_.initializeAnimation(pos))
-  }
+  def droppedInputEvents: Long = inputEvents.droppedCount
+
+  /**
+    * Live elements by editor and type, for the metrics.
+    */
+  def elementCounts: Map[String, Int] =
+    containersById.values().asScala.toSeq.flatMap { c =>
+      c.elementCounts.map { case (kind, n) => s"editor ${c.id}/$kind" -> n }
+    }.toMap
 
   def dispose: Unit = {
-    elementsOfPowerUpdateThread.interrupt()
+    animationExecutor.shutdownNow()
     elementsOfPowerContainers.clear
+    containersById.clear()
   }
 }
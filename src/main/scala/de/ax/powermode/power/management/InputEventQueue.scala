@@ -0,0 +1,104 @@
+package de.ax.powermode.power.management
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+object InputEventQueue {
+  // a typed character or caret move at a position
+  val Spawn = 0
+  // a keystroke that should show the power indicator
+  val Indicator = 1
+
+  /**
+    * Receives the drained events, without boxing them.
+    */
+  trait Consumer {
+    def accept(kind: Int, target: Int, x: Int, y: Int): Unit
+  }
+}
+
+/**
+  * A bounded, lock-free queue of input events from any number of threads
+  * to the single animation thread.
+  *
+  * Each event is a kind, the id of the container it targets and a
+  * position, kept in primitive slots. Every slot has a sequence number
+  * that tells producers whether it is free and the consumer whether it is
+  * written, so offering and draining take no locks and allocate nothing.
+  * When the queue is full, further events are dropped.
+  */
+final class InputEventQueue(capacity: Int) {
+  import InputEventQueue._
+
+  require(Integer.bitCount(capacity) == 1, "capacity must be a power of 2")
+
+  private val mask = capacity - 1
+  private val sequences = new AtomicLongArray(capacity)
+  private val kinds = new Array[Int](capacity)
+  private val targets = new Array[Int](capacity)
+  private val xs = new Array[Int](capacity)
+  private val ys = new Array[Int](capacity)
+  private val tail = new AtomicLong(0)
+  // owned by the consumer
+  private var head = 0L
+  private val dropped = new AtomicLong(0)
+
+  for (i <- 0 until capacity) {
+    sequences.set(i, i.toLong)
+  }
+
+  /**
+    * Events dropped so far because the queue was full.
+    */
+  def droppedCount: Long = dropped.get()
+
+  def isEmpty: Boolean = tail.get() == head
+
+  def nonEmpty: Boolean = !isEmpty
+
+  /**
+    * Adds an event. Returns false if the queue is full.
+    */
+  def offer(kind: Int, target: Int, x: Int, y: Int): Boolean = {
+    var position = tail.get()
+    while (true) {
+      val slot = (position & mask).toInt
+      val free = sequences.get(slot) - position
+      if (free == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          kinds(slot) = kind
+          targets(slot) = target
+          xs(slot) = x
+          ys(slot) = y
+          // publishes the slot to the consumer
+          sequences.set(slot, position + 1)
+          return true
+        }
+        position = tail.get()
+      } else if (free < 0) {
+        dropped.incrementAndGet()
+        return false
+      } else {
+        position = tail.get()
+      }
+    }
+    false
+  }
+
+  /**
+    * Hands all events written so far to `consumer` and returns how many
+    * there were. Must only be called from the consumer thread.
+    */
+  def drain(consumer: Consumer): Int = {
+    var count = 0
+    var slot = (head & mask).toInt
+    while (sequences.get(slot) == head + 1) {
+      consumer.accept(kinds(slot), targets(slot), xs(slot), ys(slot))
+      // frees the slot for the producers of the next round
+      sequences.set(slot, head + capacity)
+      head += 1
+      count += 1
+      slot = (head & mask).toInt
+    }
+    count
+  }
+}
@@ -0,0 +1,91 @@
+package de.ax.powermode.power.management
+
+import de.ax.powermode.PowerMode
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+  * Trades effects for editor responsiveness. When enabled, it adds up the
+  * time spent updating and painting each frame and compares it to the
+  * configured frame budget. A quality factor between [[minQuality]] and 1
+  * drops quickly while frames stay over budget and recovers slowly once
+  * they stay well below it, so it does not flap between the two.
+  *
+  * The factor scales spawn counts, flame sizes, shake range, how often the
+  * power indicator follows keystrokes and the effective frame rate.
+  */
+object QualityGovernor {
+  val minQuality = 0.2f
+  // how fast the measured frame cost follows new frames
+  private val smoothing = 0.2
+  // frames in a row over budget before quality drops
+  private val framesToDegrade = 3
+  // frames in a row below the recovery threshold before quality rises
+  private val framesToRecover = 30
+  // fraction of the budget frames have to stay below to recover
+  private val recoveryThreshold = 0.6
+  private val degradeFactor = 0.8f
+  private val recoverStep = 0.1f
+
+  // painted since the last frame, added to by the EDT
+  private val paintNanos = new AtomicLong(0)
+  @volatile private var currentQuality = 1f
+  // owned by the animation thread
+  private var frameCost = 0.0
+  private var overBudget = 0
+  private var underBudget = 0
+
+  def isEnabled: Boolean = {
+    val powerMode = PowerMode.getInstance
+    powerMode != null && powerMode.getIsQualityGovernorEnabled
+  }
+
+  /**
+    * The current quality factor, 1 for full effects.
+    */
+  def quality: Float = currentQuality
+
+  /**
+    * Records time spent painting effects. Safe to call from any thread.
+    */
+  def recordPaint(nanos: Long): Unit = {
+    paintNanos.addAndGet(nanos)
+  }
+
+  /**
+    * Ends a frame that took `updateNanos` to update, and adjusts the
+    * quality. Must only be called from the animation thread.
+    */
+  def endFrame(updateNanos: Long): Unit = {
+    val cost = updateNanos + paintNanos.getAndSet(0)
+    if (!isEnabled) {
+      currentQuality = 1f
+      frameCost = 0
+      overBudget = 0
+      underBudget = 0
+    } else {
+      frameCost += (cost - frameCost) * smoothing
+      val budget = TimeUnit.MILLISECONDS.toNanos(
+        PowerMode.getInstance.getFrameBudgetMillis.toLong)
+      if (frameCost > budget) {
+        underBudget = 0
+        overBudget += 1
+        if (overBudget >= framesToDegrade) {
+          overBudget = 0
+          currentQuality = math.max(minQuality, currentQuality * degradeFactor)
+        }
+      } else if (frameCost < budget * recoveryThreshold) {
+        overBudget = 0
+        underBudget += 1
+        if (underBudget >= framesToRecover) {
+          underBudget = 0
+          currentQuality = math.min(1f, currentQuality + recoverStep)
+        }
+      } else {
+        overBudget = 0
+        underBudget = 0
+      }
+    }
+  }
+}
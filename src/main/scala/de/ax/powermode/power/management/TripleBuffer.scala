@@ -0,0 +1,43 @@
+package de.ax.powermode.power.management
+
+import java.util.concurrent.atomic.AtomicInteger
+
+object TripleBuffer {
+  private val Fresh = 4
+}
+
+/**
+  * Lock-free triple buffer handing frames from the update thread to the
+  * EDT. The writer fills [[back]] and [[publish]]es it, the reader
+  * [[acquire]]s the latest published frame. Neither side ever waits for the
+  * other, and frames are reused, so the handoff does not allocate.
+  */
+class TripleBuffer[T](create: () => T) {
+  import TripleBuffer._
+
+  private val frames = IndexedSeq(create(), create(), create())
+  // index of the frame in the middle, plus the Fresh bit if it was
+  // published but not acquired yet
+  private val middle = new AtomicInteger(1)
+  private var backIndex = 0
+  private var frontIndex = 2
+
+  /**
+    * The frame the writer may fill. Only to be used by the update thread.
+    */
+  def back: T = frames(backIndex)
+
+  def publish(): Unit = {
+    backIndex = middle.getAndSet(backIndex | Fresh) & ~Fresh
+  }
+
+  /**
+    * The latest published frame. Only to be used by the EDT.
+    */
+  def acquire(): T = {
+    if ((middle.get() & Fresh) != 0) {
+      frontIndex = middle.getAndSet(frontIndex) & ~Fresh
+    }
+    frames(frontIndex)
+  }
+}
@@ -0,0 +1,198 @@
+package de.ax.powermode.power.sound
+
+import de.ax.powermode.PowerMode
+import de.ax.powermode.metrics.PowerMetrics
+import javazoom.jl.player.HackyJavaSoundAudioDevice
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{
+  CopyOnWriteArrayList,
+  ExecutorService,
+  LinkedBlockingQueue,
+  RejectedExecutionException,
+  ThreadPoolExecutor,
+  TimeUnit
+}
+import javax.sound.sampled.AudioFormat
+
+/**
+  * The single output line everything audible is played on, and the audio
+  * thread feeding it.
+  *
+  * While any [[AudioOutput.Source]] has something to play, the thread mixes
+  * all of them into one chunk of about 3ms at a time and writes it to the
+  * line. With sound effects enabled the line only buffers a few chunks, so
+  * that an effect is heard about 10ms after it was triggered; music alone
+  * gets a larger buffer, which survives longer pauses of the thread.
+  *
+  * The line stays open for a while after the last sound, so that the next
+  * one does not wait for the line to open, and then the thread goes away.
+  */
+object AudioOutput {
+
+  /**
+    * Something played on the line. Both methods are only called on the
+    * audio thread.
+    */
+  trait Source {
+
+    /**
+      * Adds the next `length` interleaved stereo samples to `mix`. Returns
+      * false while there is nothing to play.
+      */
+    def mixInto(mix: Array[Int], length: Int): Boolean
+
+    /**
+      * Called when the source was dropped from the line after an error, to
+      * let go of whatever is being played.
+      */
+    def release(): Unit
+  }
+
+  val format = new AudioFormat(TrackDecoder.SampleRate.toFloat,
+                               16,
+                               TrackDecoder.Channels,
+                               true,
+                               false)
+
+  // samples mixed at once, 128 frames or about 3ms
+  val chunkSamples: Int = 128 * TrackDecoder.Channels
+  private val bytesPerChunk = chunkSamples * 2
+  // line buffers with and without sound effects, about 12ms and 500ms
+  private val lowLatencyBufferBytes = 4 * bytesPerChunk
+  private val bufferBytes =
+    TrackDecoder.SampleRate / 2 * TrackDecoder.Channels * 2
+  // how long the line is kept open without anything to play
+  private val idleNanos = TimeUnit.SECONDS.toNanos(10)
+
+  private val sources = new CopyOnWriteArrayList[Source]()
+  private val running = new AtomicBoolean(false)
+  @volatile private var wakeRequested = false
+  @volatile private var audioThread: Thread = null
+
+  private val audioExecutor: ExecutorService =
+    new ThreadPoolExecutor(0,
+                           1,
+                           30,
+                           TimeUnit.SECONDS,
+                           new LinkedBlockingQueue[Runnable](),
+                           (r: Runnable) => {
+                             val thread = new Thread(r, "Power Mode II audio")
+                             thread.setDaemon(true)
+                             thread.setPriority(Thread.MAX_PRIORITY)
+                             thread
+                           })
+
+  private def logger = PowerMode.logger
+
+  /**
+    * Mixes `source` into the line from now on and wakes the audio thread.
+    */
+  def play(source: Source): Unit = {
+    sources.addIfAbsent(source)
+    wake()
+  }
+
+  /**
+    * Lets the audio thread look for something to play right away. Does not
+    * allocate unless the thread has to be started.
+    */
+  def wake(): Unit = {
+    wakeRequested = true
+    if (running.compareAndSet(false, true)) {
+      try {
+        audioExecutor.execute(() => run())
+      } catch {
+        case e: RejectedExecutionException =>
+          logger.debug("audio executor is shut down", e)
+          running.set(false)
+      }
+    } else {
+      val thread = audioThread
+      if (thread != null) {
+        LockSupport.unpark(thread)
+      }
+    }
+  }
+
+  private def desiredBufferBytes: Int =
+    if (SoundEffects.isEnabled) lowLatencyBufferBytes else bufferBytes
+
+  private def run(): Unit = {
+    audioThread = Thread.currentThread()
+    val mix = new Array[Int](chunkSamples)
+    val chunk = new Array[Short](chunkSamples)
+    var device: HackyJavaSoundAudioDevice = null
+    var idleSince = System.nanoTime()
+    var wrote = false
+    try {
+      var done = false
+      while (!done) {
+        wakeRequested = false
+        java.util.Arrays.fill(mix, 0)
+        var active = false
+        sources.forEach { source =>
+          try {
+            active |= source.mixInto(mix, chunkSamples)
+          } catch {
+            case e: Exception =>
+              logger.debug("could not play sound", e)
+              sources.remove(source)
+              source.release()
+          }
+        }
+        if (active) {
+          if (device != null && device.getBufferSize != desiredBufferBytes) {
+            device.close()
+            device = null
+            wrote = false
+          }
+          if (device == null) {
+            device = new HackyJavaSoundAudioDevice
+            device.setBufferSize(desiredBufferBytes)
+            device.open(format)
+          }
+          var i = 0
+          while (i < chunkSamples) {
+            chunk(i) =
+              math.max(math.min(mix(i), Short.MaxValue), Short.MinValue).toShort
+            i += 1
+          }
+          val line = device.source
+          // a line that was fed last time and is empty now ran dry
+          if (wrote && line != null &&
+              line.available() >= line.getBufferSize) {
+            PowerMetrics.audioUnderruns.increment()
+          }
+          device.write(chunk, 0, chunkSamples)
+          wrote = true
+          idleSince = System.nanoTime()
+        } else if (!wakeRequested) {
+          wrote = false
+          val idle = System.nanoTime() - idleSince
+          if (idle >= idleNanos) {
+            done = true
+          } else {
+            LockSupport.parkNanos(this, idleNanos - idle)
+          }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        logger.debug("playback info", e)
+        sources.forEach(_.release())
+        sources.clear()
+    } finally {
+      if (device != null) {
+        device.close()
+      }
+      audioThread = null
+      running.set(false)
+      // a wake up may have missed the thread while it was finishing
+      if (wakeRequested && !sources.isEmpty) {
+        wake()
+      }
+    }
+  }
+}
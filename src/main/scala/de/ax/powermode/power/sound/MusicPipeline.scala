@@ -0,0 +1,360 @@
+package de.ax.powermode.power.sound
+
+import com.intellij.util.concurrency.AppExecutorUtil
+import de.ax.powermode.PowerMode
+import squants.Dimensionless
+import squants.DimensionlessConversions.dimensionlessToDouble
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicReference
+
+object MusicPipeline {
+
+  /**
+    * Lifecycle of the pipeline. Requests only move it from Idle to Starting
+    * and from Starting or Playing to Stopping; the audio thread moves it on
+    * to Playing and back to Idle.
+    */
+  sealed trait State
+  case object Idle extends State
+  case object Starting extends State
+  case object Playing extends State
+  case object Stopping extends State
+
+  // about one second of decoded audio is kept ahead of the line
+  private val ringSamples = TrackDecoder.SampleRate * TrackDecoder.Channels
+  // the quietest volume above silence
+  private val minDecibels = -60.0
+  // playback gives up after this many tracks in a row could not be decoded
+  private val maxEmptyTracks = 3
+
+  // opens and closes tracks, which touches the disk, off the audio thread
+  private val opener = AppExecutorUtil
+    .createBoundedApplicationPoolExecutor("Power Mode II track opener", 1)
+
+  // the result of opening the next track, None if there is none
+  private final case class Opened(generation: Int, track: Option[TrackSource])
+
+  /**
+    * Adds `n` samples to `mix`, ramping the gain from `from` to `to` over
+    * them so that volume changes do not click. This is the only gain stage
+    * of the music; the audio thread clamps the mix when it writes it.
+    */
+  def mixRamped(samples: Array[Short],
+                n: Int,
+                mix: Array[Int],
+                from: Float,
+                to: Float): Unit = {
+    val step = if (n > 0) (to - from) / n else 0f
+    var gain = from
+    var i = 0
+    while (i < n) {
+      gain += step
+      mix(i) += (samples(i) * gain).toInt
+      i += 1
+    }
+  }
+}
+
+/**
+  * Plays the tracks returned by `nextTrack` back to back, as a source of
+  * the [[AudioOutput]].
+  *
+  * The audio thread keeps a [[PcmRing]] filled from the current
+  * [[TrackSource]] and mixes it into the line chunk by chunk, decoding only
+  * about one MP3 frame per chunk so that the chunk is never held up. The
+  * upcoming track is opened on another thread as soon as the current one
+  * starts, and decoding moves on to it while the end of the current track
+  * is still in the ring, so tracks play without gaps. With the [[PcmCache]]
+  * enabled, tracks decoded before are read from the cache instead.
+  *
+  * None of the requests block: [[start]], [[stop]] and [[skip]] only
+  * change the [[MusicPipeline.State]] or set a flag for the audio thread,
+  * which reports every state it reaches to `onStateChange`.
+  */
+class MusicPipeline(nextTrack: () => Option[File],
+                    onStateChange: MusicPipeline.State => Unit = _ => ())
+    extends AudioOutput.Source {
+  import MusicPipeline._
+
+  private def logger = PowerMode.logger
+
+  private val state = new AtomicReference[State](Idle)
+  // set by a start request while the previous playback is still stopping
+  @volatile private var restartRequested = false
+  @volatile private var skipRequested = false
+  @volatile private var linearGain = 1f
+
+  // owned by the audio thread
+  private val ring = new PcmRing(ringSamples)
+  private var chunk = new Array[Short](AudioOutput.chunkSamples)
+  private var current: TrackSource = null
+  private var upcoming: TrackSource = null
+  // whether the upcoming track is being opened, and if there are no more
+  private var opening = false
+  private var noMoreTracks = false
+  // bumped when the tracks are closed, so that a track opened for them is
+  // closed instead of played
+  @volatile private var generation = 0
+  private val opened = new AtomicReference[Opened]()
+  private var appliedGain = linearGain
+  // tracks in a row that ended without a single sample
+  private var emptyTracks = 0
+  private var trackSamples = 0L
+
+  def currentState: State = state.get()
+
+  /**
+    * Whether playback is requested, i.e. starting or playing.
+    */
+  def isRunning: Boolean = currentState match {
+    case Starting | Playing => true
+    case _                  => false
+  }
+
+  def start(): Unit = {
+    state.get() match {
+      case Idle =>
+        if (state.compareAndSet(Idle, Starting)) {
+          skipRequested = false
+          onStateChange(Starting)
+          AudioOutput.play(this)
+        } else {
+          start()
+        }
+      case Stopping =>
+        restartRequested = true
+        // the audio thread may have finished in the meantime
+        if (state.get() == Idle && restartRequested) {
+          restartRequested = false
+          start()
+        }
+      case Starting | Playing =>
+    }
+  }
+
+  /**
+    * Asks the audio thread to stop. Returns immediately; the state is Idle
+    * once the tracks are closed.
+    */
+  def stop(): Unit = {
+    restartRequested = false
+    var requested = false
+    while (!requested) {
+      state.get() match {
+        case running @ (Starting | Playing) =>
+          if (state.compareAndSet(running, Stopping)) {
+            requested = true
+            onStateChange(Stopping)
+          }
+        case Idle | Stopping =>
+          requested = true
+      }
+    }
+  }
+
+  /**
+    * Drops what is buffered of the current track and continues with the
+    * next one.
+    */
+  def skip(): Unit = {
+    skipRequested = true
+  }
+
+  /**
+    * Sets the volume, limited to `volumeRange`. The volume is mapped on a
+    * log scale to a software gain, which the audio thread ramps to over
+    * the next chunk.
+    */
+  def setVolume(rawGain: Dimensionless,
+                volumeRange: (Dimensionless, Dimensionless)): Unit = {
+    val gain: Dimensionless =
+      if (volumeRange._2 < rawGain) {
+        volumeRange._2
+      } else if (rawGain < volumeRange._1) {
+        volumeRange._1
+      } else {
+        rawGain
+      }
+    // use log scale to have a smoother transition at higer volume level
+    // slight higher volume changes are much harsher compared to the same amount of low volume change otherwise.
+    val logGain: Double = math.min(math.log10(1 + gain.toDouble * 9), 1)
+    linearGain =
+      if (logGain <= 0) 0f
+      else math.pow(10, minDecibels * (1 - logGain) / 20).toFloat
+  }
+
+  private def open(): TrackSource = {
+    nextTrack().map { f =>
+      try {
+        if (PcmCache.isEnabled) {
+          PcmCache
+            .open(f)
+            .getOrElse(new TrackDecoder(f, PcmCache.writer(f)))
+        } else {
+          new TrackDecoder(f)
+        }
+      } catch {
+        case e: Exception =>
+          logger.debug(s"could not open sound file '$f'", e)
+          null
+      }
+    }.orNull
+  }
+
+  // asks the opener for the upcoming track
+  private def requestOpen(): Unit = {
+    if (!opening && !noMoreTracks && upcoming == null) {
+      opening = true
+      val requested = generation
+      opener.execute { () =>
+        opened.set(Opened(requested, Option(open())))
+        if (generation != requested) {
+          receiveOpened()
+        }
+      }
+    }
+  }
+
+  // takes the opened track, or closes it if the tracks were closed meanwhile
+  private def receiveOpened(): Unit = {
+    val result = opened.get()
+    if (result != null && opened.compareAndSet(result, null)) {
+      if (result.generation == generation) {
+        opening = false
+        result.track match {
+          case Some(track) => upcoming = track
+          case None        => noMoreTracks = true
+        }
+      } else {
+        result.track.foreach(closeQuietly)
+      }
+    }
+  }
+
+  override def mixInto(mix: Array[Int], length: Int): Boolean = {
+    state.get() match {
+      case Idle =>
+        false
+      case Starting =>
+        if (state.compareAndSet(Starting, Playing)) {
+          onStateChange(Playing)
+          emptyTracks = 0
+          trackSamples = 0
+          noMoreTracks = false
+          requestOpen()
+        }
+        true
+      case Playing =>
+        if (playInto(mix, length)) {
+          true
+        } else {
+          finish()
+          false
+        }
+      case Stopping =>
+        finish()
+        false
+    }
+  }
+
+  override def release(): Unit = {
+    closeTracks()
+    state.set(Idle)
+    onStateChange(Idle)
+  }
+
+  /**
+    * Mixes the next chunk of the current track into `mix`. Returns false
+    * once all tracks are played.
+    */
+  private def playInto(mix: Array[Int], length: Int): Boolean = {
+    if (skipRequested) {
+      skipRequested = false
+      ring.clear()
+      closeQuietly(current)
+      current = null
+    }
+    receiveOpened()
+    if (current == null && upcoming != null && emptyTracks < maxEmptyTracks) {
+      current = upcoming
+      upcoming = null
+    }
+    if (current != null) {
+      requestOpen()
+    }
+    // decode what this chunk needs and at most one frame ahead of it
+    var decoded = 0
+    while (current != null && ring.free >= TrackDecoder.MaxFrameSamples &&
+           (decoded == 0 || ring.size < length)) {
+      val before = ring.size
+      val hasMore = try {
+        current.decodeInto(ring)
+      } catch {
+        case e: Exception =>
+          logger.debug(s"could not decode '${current.file}'", e)
+          false
+      }
+      decoded += 1
+      trackSamples += ring.size - before
+      if (!hasMore) {
+        closeQuietly(current)
+        emptyTracks = if (trackSamples == 0) emptyTracks + 1 else 0
+        trackSamples = 0
+        if (emptyTracks >= maxEmptyTracks) {
+          current = null
+        } else {
+          current = upcoming
+          upcoming = null
+          if (current != null) {
+            requestOpen()
+          }
+        }
+      }
+    }
+    if (chunk.length < length) {
+      chunk = new Array[Short](length)
+    }
+    val n = ring.take(chunk, 0, length)
+    val target = linearGain
+    mixRamped(chunk, n, mix, appliedGain, target)
+    appliedGain = target
+    // keep going while the next track is opened
+    n > 0 || current != null ||
+    (emptyTracks < maxEmptyTracks && (upcoming != null || opening))
+  }
+
+  private def finish(): Unit = {
+    closeTracks()
+    state.set(Idle)
+    onStateChange(Idle)
+    if (restartRequested) {
+      restartRequested = false
+      start()
+    }
+  }
+
+  private def closeTracks(): Unit = {
+    closeQuietly(current)
+    closeQuietly(upcoming)
+    current = null
+    upcoming = null
+    generation += 1
+    opening = false
+    receiveOpened()
+    ring.clear()
+  }
+
+  private def closeQuietly(track: TrackSource): Unit = {
+    if (track != null) {
+      opener.execute { () =>
+        try {
+          track.close()
+        } catch {
+          case e: Exception =>
+            logger.debug(s"could not close '${track.file}'", e)
+        }
+      }
+    }
+  }
+}
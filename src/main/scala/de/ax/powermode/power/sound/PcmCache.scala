@@ -0,0 +1,267 @@
+package de.ax.powermode.power.sound
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.io.ByteBufferUtil
+import de.ax.powermode.PowerMode
+
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
+import java.nio.{ByteBuffer, MappedByteBuffer, ShortBuffer}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+  * Opt-in cache of decoded tracks on disk, so that replaying a track only
+  * copies samples out of a memory-mapped file instead of decoding it again.
+  *
+  * Each track is stored as a header (magic, sample rate, channels) followed
+  * by its samples, and named after a hash of the track's path, size and
+  * modification time. The cache is pruned to the configured byte budget by
+  * last use.
+  *
+  * Tracks are written and the cache is pruned on a writer thread, so the
+  * thread decoding a track only copies its samples into chunks.
+  */
+object PcmCache {
+  private val Magic = 0x504d5043 // PMPC
+  private val HeaderBytes = 12
+  private val ChunkBytes = 64 * 1024
+
+  private val io = AppExecutorUtil
+    .createBoundedApplicationPoolExecutor("Power Mode II pcm cache", 1)
+  // chunks the writer thread is done with, so writing does not allocate
+  private val freeChunks = new ConcurrentLinkedQueue[ByteBuffer]()
+
+  def directory: File = new File(PathManager.getSystemPath, "power-mode/pcm")
+
+  def isEnabled: Boolean = PowerMode.getInstance.getIsPcmCacheEnabled
+
+  private def maxBytes: Long =
+    PowerMode.getInstance.getPcmCacheMegabytes * 1024L * 1024
+
+  def fileFor(track: File): File = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(track.getAbsolutePath.getBytes("UTF-8"))
+    digest.update(
+      ByteBuffer
+        .allocate(16)
+        .putLong(track.length())
+        .putLong(track.lastModified())
+        .array())
+    val hash = digest.digest().take(16).map(b => f"$b%02x").mkString
+    new File(directory, s"$hash.pcm")
+  }
+
+  /**
+    * The cached samples of `track`, if there are any. Hashes and maps a
+    * file, so it is not to be called on the audio thread.
+    */
+  def open(track: File): Option[CachedTrack] = {
+    val file = fileFor(track)
+    if (!file.isFile) {
+      None
+    } else {
+      try {
+        val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+        val buffer = try {
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        } finally {
+          channel.close()
+        }
+        if (buffer.getInt(0) == Magic &&
+            buffer.getInt(4) == TrackDecoder.SampleRate &&
+            buffer.getInt(8) == TrackDecoder.Channels) {
+          file.setLastModified(System.currentTimeMillis())
+          val samples = buffer.duplicate()
+          samples.position(HeaderBytes)
+          Some(new CachedTrack(track, buffer, samples.slice().asShortBuffer()))
+        } else {
+          ByteBufferUtil.cleanBuffer(buffer)
+          throw new IllegalArgumentException(s"not a pcm cache file: $file")
+        }
+      } catch {
+        case e: Exception =>
+          PowerMode.logger
+            .debug(s"could not open pcm cache '$file': ${e.getMessage}", e)
+          file.delete()
+          None
+      }
+    }
+  }
+
+  /**
+    * A writer for the samples of `track`, which only become visible in the
+    * cache once the whole track was written.
+    */
+  def writer(track: File): Option[Writer] = {
+    try {
+      Some(new Writer(fileFor(track)))
+    } catch {
+      case e: Exception =>
+        PowerMode.logger.debug(s"could not cache '$track': ${e.getMessage}", e)
+        None
+    }
+  }
+
+  private def chunk(): ByteBuffer = {
+    val free = freeChunks.poll()
+    if (free != null) free else ByteBuffer.allocate(ChunkBytes)
+  }
+
+  /**
+    * Collects the samples of a track into chunks on the decoding thread,
+    * which are written to a temporary file on the writer thread.
+    */
+  class Writer private[PcmCache] (target: File) {
+    // owned by the decoding thread
+    private var bytes = chunk()
+    private var written = 0L
+    private var dropped = false
+    // set by the writer thread
+    @volatile private var failed = false
+    // owned by the writer thread
+    private var tmp: File = null
+    private var channel: FileChannel = null
+    bytes
+      .putInt(Magic)
+      .putInt(TrackDecoder.SampleRate)
+      .putInt(TrackDecoder.Channels)
+
+    def write(samples: Array[Short], offset: Int, length: Int): Unit = {
+      if (!failed) {
+        var i = offset
+        val end = offset + length
+        while (!dropped && i < end) {
+          if (bytes.remaining() < 2) {
+            flush()
+          }
+          bytes.putShort(samples(i))
+          i += 1
+        }
+      }
+    }
+
+    def commit(): Unit = {
+      flush()
+      io.execute(() => {
+        closeChannel()
+        if (!failed && !dropped && tmp != null) {
+          try {
+            Files.move(tmp.toPath,
+                       target.toPath,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE)
+            prune()
+          } catch {
+            case e: Exception =>
+              PowerMode.logger.debug(s"could not cache '$target'", e)
+          }
+        }
+        deleteTmp()
+      })
+    }
+
+    def abort(): Unit = {
+      dropped = true
+      io.execute(() => {
+        closeChannel()
+        deleteTmp()
+      })
+    }
+
+    // hands the full chunk to the writer thread
+    private def flush(): Unit = {
+      bytes.flip()
+      written += bytes.remaining()
+      // a track larger than the whole cache is not worth caching
+      dropped ||= written > maxBytes
+      if (dropped || failed) {
+        bytes.clear()
+      } else {
+        val full = bytes
+        bytes = chunk()
+        io.execute(() => writeChunk(full))
+      }
+    }
+
+    private def writeChunk(full: ByteBuffer): Unit = {
+      try {
+        if (!failed) {
+          if (channel == null) {
+            target.getParentFile.mkdirs()
+            tmp = File.createTempFile(target.getName, ".tmp", target.getParentFile)
+            channel = FileChannel.open(tmp.toPath, StandardOpenOption.WRITE)
+          }
+          while (full.hasRemaining) {
+            channel.write(full)
+          }
+        }
+      } catch {
+        case e: Exception =>
+          PowerMode.logger.debug(s"could not write '$tmp'", e)
+          failed = true
+      } finally {
+        full.clear()
+        freeChunks.offer(full)
+      }
+    }
+
+    private def closeChannel(): Unit = {
+      if (channel != null) {
+        try {
+          channel.close()
+        } catch {
+          case e: Exception =>
+            failed = true
+        }
+        channel = null
+      }
+    }
+
+    private def deleteTmp(): Unit = {
+      if (tmp != null) {
+        tmp.delete()
+        tmp = null
+      }
+    }
+  }
+
+  private def prune(): Unit = {
+    val files = Option(directory.listFiles())
+      .map(_.toSeq)
+      .getOrElse(Seq.empty)
+      .filter(_.getName.endsWith(".pcm"))
+      .sortBy(-_.lastModified())
+    val limit = maxBytes
+    var bytes = 0L
+    files.foreach { f =>
+      bytes += f.length()
+      if (bytes > limit) {
+        f.delete()
+      }
+    }
+  }
+}
+
+/**
+  * Plays the cached samples of `file`. Closing it unmaps the cache file.
+  */
+class CachedTrack(val file: File,
+                  buffer: MappedByteBuffer,
+                  samples: ShortBuffer)
+    extends TrackSource {
+  override def decodeInto(ring: PcmRing): Boolean = {
+    if (samples.hasRemaining) {
+      ring.put(samples, TrackDecoder.MaxFrameSamples)
+      true
+    } else {
+      false
+    }
+  }
+
+  override def close(): Unit = {
+    ByteBufferUtil.cleanBuffer(buffer)
+  }
+}
@@ -0,0 +1,74 @@
+package de.ax.powermode.power.sound
+
+import java.nio.ShortBuffer
+
+/**
+  * A bounded ring of interleaved 16 bit samples between a decoder and the
+  * output line. Not thread safe; it is owned by the audio thread.
+  */
+final class PcmRing(capacity: Int) {
+  private val samples = new Array[Short](capacity)
+  private var readIndex = 0
+  private var count = 0
+
+  def size: Int = count
+
+  def free: Int = capacity - count
+
+  def isEmpty: Boolean = count == 0
+
+  def nonEmpty: Boolean = !isEmpty
+
+  def clear(): Unit = {
+    readIndex = 0
+    count = 0
+  }
+
+  def put(sample: Short): Unit = {
+    if (count < capacity) {
+      samples((readIndex + count) % capacity) = sample
+      count += 1
+    }
+  }
+
+  /**
+    * Appends up to `length` samples and returns how many fitted.
+    */
+  def put(buffer: Array[Short], offset: Int, length: Int): Int = {
+    val n = math.min(length, free)
+    val writeIndex = (readIndex + count) % capacity
+    val first = math.min(n, capacity - writeIndex)
+    System.arraycopy(buffer, offset, samples, writeIndex, first)
+    System.arraycopy(buffer, offset + first, samples, 0, n - first)
+    count += n
+    n
+  }
+
+  /**
+    * Appends up to `length` samples from `buffer` and returns how many
+    * fitted.
+    */
+  def put(buffer: ShortBuffer, length: Int): Int = {
+    val n = math.min(math.min(length, free), buffer.remaining())
+    val writeIndex = (readIndex + count) % capacity
+    val first = math.min(n, capacity - writeIndex)
+    buffer.get(samples, writeIndex, first)
+    buffer.get(samples, 0, n - first)
+    count += n
+    n
+  }
+
+  /**
+    * Moves up to `length` samples into `buffer` and returns how many were
+    * taken.
+    */
+  def take(buffer: Array[Short], offset: Int, length: Int): Int = {
+    val n = math.min(length, count)
+    val first = math.min(n, capacity - readIndex)
+    System.arraycopy(samples, readIndex, buffer, offset, first)
+    System.arraycopy(samples, 0, buffer, offset + first, n - first)
+    readIndex = (readIndex + n) % capacity
+    count -= n
+    n
+  }
+}
@@ -0,0 +1,157 @@
+package de.ax.powermode.power.sound
+
+import com.intellij.util.concurrency.AppExecutorUtil
+import de.ax.powermode.{FolderWatcher, PowerMode}
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.mutable
+
+object Playlist {
+  // subfolders deeper than this are not searched for tracks
+  private val maxDepth = 8
+  // how often a folder that does not exist is looked for again
+  private val missingRetryMillis = 5000L
+
+  // builds the indexes of all playlists, one at a time
+  private val indexer = AppExecutorUtil
+    .createBoundedApplicationPoolExecutor("Power Mode II playlist indexer", 1)
+
+  def isTrack(f: File): Boolean =
+    f.isFile && f.getName.toLowerCase.endsWith(".mp3")
+}
+
+/**
+  * The tracks in `folder` and its subfolders. The index is built on a
+  * pooled thread when the playlist is created, and rebuilt there when the
+  * [[FolderWatcher]] reports a change in one of the folders, so asking for
+  * tracks never touches the disk. The playlist is empty until the first
+  * index is done. Only a folder that does not exist, and so can not be
+  * watched, is looked for again every few seconds.
+  *
+  * Tracks are played in shuffled order, each once per round, and a round
+  * does not start with the track the previous one ended with.
+  */
+class Playlist(val folder: File) {
+  import Playlist._
+
+  private val watches = new ConcurrentHashMap[File, AutoCloseable]()
+  @volatile private var closed = false
+  @volatile private var folderFound = false
+  @volatile private var retryAt = System.currentTimeMillis() + missingRetryMillis
+  @volatile private var tracks: IndexedSeq[File] = IndexedSeq.empty
+  private val indexRequested = new AtomicBoolean(false)
+  // shuffled positions into tracks, guarded by this
+  private var order = Array.empty[Int]
+  private var position = 0
+  private var lastTrack = Option.empty[File]
+  requestIndex()
+
+  def size: Int = tracks.size
+
+  def isEmpty: Boolean = tracks.isEmpty
+
+  def nonEmpty: Boolean = !isEmpty
+
+  /**
+    * Whether the folder exists and holds tracks.
+    */
+  def hasTracks: Boolean = {
+    if (!folderFound && !closed) {
+      val now = System.currentTimeMillis()
+      if (now >= retryAt) {
+        retryAt = now + missingRetryMillis
+        requestIndex()
+      }
+    }
+    nonEmpty
+  }
+
+  def next(): Option[File] = synchronized {
+    val current = tracks
+    if (current.isEmpty) {
+      None
+    } else {
+      if (order.length != current.size || position >= order.length) {
+        order = scala.util.Random.shuffle(current.indices.toVector).toArray
+        position = 0
+        // do not repeat the last track across rounds
+        if (order.length > 1 && lastTrack.contains(current(order(0)))) {
+          val swap = 1 + scala.util.Random.nextInt(order.length - 1)
+          val first = order(0)
+          order(0) = order(swap)
+          order(swap) = first
+        }
+      }
+      val track = current(order(position))
+      position += 1
+      lastTrack = Some(track)
+      Some(track)
+    }
+  }
+
+  /**
+    * Stops watching the folders.
+    */
+  def close(): Unit = {
+    closed = true
+    watches.values().forEach(_.close())
+    watches.clear()
+  }
+
+  private def index(): IndexedSeq[File] = {
+    val found = mutable.ArrayBuffer.empty[File]
+    val folders = mutable.Set.empty[File]
+
+    def walk(dir: File, depth: Int): Unit = {
+      folders += dir
+      watch(dir)
+      Option(dir.listFiles()).foreach(_.sortBy(_.getName).foreach { f =>
+        if (f.isDirectory) {
+          if (depth < maxDepth) {
+            walk(f, depth + 1)
+          }
+        } else if (isTrack(f)) {
+          found += f
+        }
+      })
+    }
+
+    folderFound = folder.isDirectory
+    if (folderFound) {
+      walk(folder, 0)
+    }
+    // drop the watches of folders that are gone
+    watches.keySet().forEach { dir =>
+      if (!folders.contains(dir)) {
+        Option(watches.remove(dir)).foreach(_.close())
+      }
+    }
+    PowerMode.logger.debug(s"indexed ${found.size} tracks in '$folder'")
+    found.toVector
+  }
+
+  private def watch(dir: File): Unit = {
+    if (!watches.containsKey(dir)) {
+      FolderWatcher.watch(dir)(() => requestIndex()).foreach { registration =>
+        if (watches.putIfAbsent(dir, registration) != null || closed) {
+          registration.close()
+        }
+      }
+    }
+  }
+
+  // indexes on the indexer, at most once per request in flight; a change
+  // while indexing requests another pass
+  private def requestIndex(): Unit = {
+    if (!closed && indexRequested.compareAndSet(false, true)) {
+      indexer.execute { () =>
+        indexRequested.set(false)
+        if (!closed) {
+          tracks = index()
+        }
+      }
+    }
+  }
+}
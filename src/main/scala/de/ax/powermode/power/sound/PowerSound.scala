@@ -1,7 +1,6 @@
 package de.ax.powermode.power.sound
 
 import de.ax.powermode.Power
-import javazoom.jl.player.{FactoryRegistry, HackyJavaSoundAudioDevice, Player}
 import squants.Dimensionless
 
 import java.io.File
@@ -14,86 +13,87 @@ class PowerSound(folder: => Option[File],
                  valueFactor: => Dimensionless,
                  volumeRange: => (Dimensionless, Dimensionless))
     extends Power {
+  private val pipeline = new MusicPipeline(
+    () => nextFile(),
+    state => logger.debug(s"${this.hashCode()} music $state"))
+
   def next(): Unit = {
     this.synchronized {
-      doStop()
-      doPlay()
+      if (pipeline.isRunning) {
+        pipeline.skip()
+      } else {
+        doPlay()
+      }
     }
   }
 
-  def resetPlaying(): Unit = {
-    playing = false
-  }
-
-  def files: Array[File] =
-    folder
-      .flatMap(f => Option(f.listFiles()))
-      .getOrElse(Array.empty[File])
-      .filter(f => f.isFile && f.exists)
-
-  var playing = false
+  // the playlist of the current folder, replaced when the folder changes
+  @volatile private var playlist: Option[Playlist] = folder.map(new Playlist(_))
 
-  var current = 1
+  def playing: Boolean = pipeline.isRunning
 
-  def setVolume(v: Dimensionless): Unit = this.synchronized {
-    mediaPlayer.foreach(_.setVolume(v))
+  def setVolume(v: Dimensionless): Unit = {
+    pipeline.setVolume(v, volumeRange)
   }
 
   private def doStop(): Unit = {
-    this.synchronized {
-      mediaPlayer.foreach(_.stop())
-      while (mediaPlayer.exists(_.playThread.exists(_.isAlive))) {
-        logger.debug("still playing in thread")
-        Thread.sleep(100)
-      }
-      mediaPlayer = Option.empty
-      playing = false
-    }
+    pipeline.stop()
   }
 
-  var mediaPlayer = Option.empty[MediaPlayer]
-
-  var index = 0
-
-  var lastFolder: Option[File] = folder
+  // the folder the playlist was made for, compared by reference, since the
+  // setting is replaced whenever it changes
+  @volatile private var lastFolder: Option[File] = folder
 
   def stop(): Unit = this.synchronized {
     doStop()
   }
 
+  /**
+    * Keeps the music playing, called on every frame. Like all requests it
+    * never waits for the audio thread: after a folder change the old
+    * playback is asked to stop and the new one starts once it has.
+    */
   def play(): Unit = this.synchronized {
-    if (lastFolder.map(_.getAbsolutePath) != folder.map(_.getAbsolutePath)) {
-      doStop()
-    }
+    syncFolder()
     doPlay()
   }
 
-  private def doPlay(): Unit = {
-    val myFiles: Array[File] = files
-    if (!playing && myFiles != null && !myFiles.isEmpty) {
-      index = (Math.random() * (200 * myFiles.length)).toInt % myFiles.length
-      val f = myFiles(index)
-      logger.debug(
-        s"${this.hashCode()} playing sound file '$f' playing=${playing} mediaPlayer=${mediaPlayer}")
-      try {
-        playing = true
-        mediaPlayer = Some {
-          val mediaPlayer =
-            new de.ax.powermode.power.sound.MediaPlayer(f, volumeRange)
-          mediaPlayer.onError(() => {
-            logger.debug("resetting")
-            resetPlaying()
-          })
-          mediaPlayer.setVolume(valueFactor)
-          mediaPlayer.play()
-          mediaPlayer
+  /**
+    * Whether the folder exists and holds tracks, without touching the disk.
+    */
+  def hasTracks: Boolean = {
+    syncFolder()
+    playlist.exists(_.hasTracks)
+  }
+
+  private def syncFolder(): Unit = {
+    if (folder ne lastFolder) {
+      this.synchronized {
+        val current = folder
+        if (current ne lastFolder) {
+          doStop()
+          lastFolder = current
+          playlist.foreach(_.close())
+          playlist = current.map(new Playlist(_))
         }
-        logger.debug(s"started playing '$f'")
-      } catch {
-        case e: Throwable =>
-          e.printStackTrace()
-          playing = false
       }
     }
   }
+
+  private def doPlay(): Unit = {
+    if (!playing && playlist.exists(_.nonEmpty)) {
+      logger.debug(s"${this.hashCode()} starting playback of '$folder'")
+      pipeline.start()
+      pipeline.setVolume(valueFactor, volumeRange)
+    }
+  }
+
+  /**
+    * Picks the next track, called by the audio thread.
+    */
+  private def nextFile(): Option[File] = {
+    val next = playlist.flatMap(_.next())
+    next.foreach(f => logger.debug(s"${this.hashCode()} playing sound file '$f'"))
+    next
+  }
 }
@@ -0,0 +1,191 @@
+package de.ax.powermode.power.sound
+
+import de.ax.powermode.PowerMode
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+  * Short sound effects for typing, mixed into the [[AudioOutput]] next to
+  * the music.
+  *
+  * The effects are synthesized once into a pool of samples. Triggering one
+  * only counts it up and wakes the audio thread, so it is safe and free of
+  * allocations on any thread. At the start of every chunk the audio thread
+  * turns the counted triggers into voices of a fixed voice table; when all
+  * voices are busy, the oldest one is taken over.
+  */
+object SoundEffects extends AudioOutput.Source {
+  sealed abstract class Effect(private[sound] val index: Int,
+                               private[sound] val minIntervalMillis: Int)
+  // the click of a keystroke
+  case object Click extends Effect(0, 0)
+  // the hit of a BAM
+  case object Bam extends Effect(1, 0)
+  // flames flaring up, at most every 400ms
+  case object Whoosh extends Effect(2, 400)
+
+  private val effects = IndexedSeq(Click, Bam, Whoosh)
+  private val voiceCount = 16
+  private val sampleRate = TrackDecoder.SampleRate
+
+  def isEnabled: Boolean = {
+    val powerMode = PowerMode.getInstance
+    powerMode != null && powerMode.isEnabled &&
+    powerMode.getIsSoundEffectsEnabled
+  }
+
+  private def volume: Float = {
+    val powerMode = PowerMode.getInstance
+    if (powerMode == null) {
+      0f
+    } else {
+      val v = powerMode.getSoundEffectsVolume / 100f
+      v * v
+    }
+  }
+
+  // mono samples of each effect, by index
+  private val samples: Array[Array[Short]] =
+    Array(synthesizeClick(), synthesizeBam(), synthesizeWhoosh())
+
+  // triggers not yet seen by the audio thread, by effect index
+  private val pending = new AtomicIntegerArray(effects.size)
+
+  // the voice table, owned by the audio thread; an effect of -1 is a free
+  // voice
+  private val voiceEffect = Array.fill(voiceCount)(-1)
+  private val voicePosition = new Array[Int](voiceCount)
+  private val voiceGain = new Array[Float](voiceCount)
+  private val voiceAge = new Array[Long](voiceCount)
+  private val lastStart = Array.fill(effects.size)(Long.MinValue)
+  private var voicesStarted = 0L
+  private var random = 0x2545f491
+
+  def trigger(effect: Effect): Unit = {
+    if (isEnabled) {
+      pending.incrementAndGet(effect.index)
+      AudioOutput.play(this)
+    }
+  }
+
+  override def mixInto(mix: Array[Int], length: Int): Boolean = {
+    var e = 0
+    while (e < effects.size) {
+      val triggers = pending.getAndSet(e, 0)
+      if (triggers > 0) {
+        startVoice(e, triggers)
+      }
+      e += 1
+    }
+    var active = false
+    val master = volume
+    var v = 0
+    while (v < voiceCount) {
+      val effect = voiceEffect(v)
+      if (effect >= 0) {
+        active = true
+        val sample = samples(effect)
+        val gain = voiceGain(v) * master
+        var position = voicePosition(v)
+        var i = 0
+        while (i + 1 < length && position < sample.length) {
+          val s = (sample(position) * gain).toInt
+          mix(i) += s
+          mix(i + 1) += s
+          i += 2
+          position += 1
+        }
+        voicePosition(v) = position
+        if (position >= sample.length) {
+          voiceEffect(v) = -1
+        }
+      }
+      v += 1
+    }
+    active
+  }
+
+  override def release(): Unit = {
+    java.util.Arrays.fill(voiceEffect, -1)
+  }
+
+  private def startVoice(effect: Int, triggers: Int): Unit = {
+    val now = System.nanoTime()
+    val minInterval =
+      TimeUnit.MILLISECONDS.toNanos(effects(effect).minIntervalMillis)
+    if (lastStart(effect) == Long.MinValue ||
+        now - lastStart(effect) >= minInterval) {
+      lastStart(effect) = now
+      var voice = 0
+      var v = 1
+      while (v < voiceCount && voiceEffect(voice) >= 0) {
+        if (voiceEffect(v) < 0 || voiceAge(v) < voiceAge(voice)) {
+          voice = v
+        }
+        v += 1
+      }
+      // triggers within one chunk, e.g. from many carets, sound as one
+      // louder voice; a little variation keeps repeats from sounding robotic
+      random ^= random << 13
+      random ^= random >>> 17
+      random ^= random << 5
+      val variation = 0.8f + (random & 0xff) / 255f * 0.2f
+      voicesStarted += 1
+      voiceEffect(voice) = effect
+      voicePosition(voice) = 0
+      voiceGain(voice) = math.min(1f + 0.25f * (triggers - 1), 2f) * variation
+      voiceAge(voice) = voicesStarted
+    }
+  }
+
+  private def synthesize(seconds: Double)(
+      sample: Double => Double): Array[Short] = {
+    val length = (seconds * sampleRate).toInt
+    // fade out over the last 5ms, so that no effect ends with a click
+    val fade = sampleRate / 200
+    Array.tabulate(length) { i =>
+      val t = i.toDouble / sampleRate
+      val s = sample(t) * math.min(1.0, (length - i).toDouble / fade)
+      (math.max(-1.0, math.min(1.0, s)) * Short.MaxValue).toShort
+    }
+  }
+
+  private def synthesizeClick(): Array[Short] = {
+    val random = new scala.util.Random(1)
+    var last = 0.0
+    synthesize(0.015) { t =>
+      // differentiated noise for a bright tick on top of a short tone
+      val noise = random.nextGaussian() * 0.3
+      val tick = (noise - last) * math.exp(-t / 0.002)
+      last = noise
+      tick + math.sin(2 * math.Pi * 1800 * t) * 0.3 * math.exp(-t / 0.004)
+    }
+  }
+
+  private def synthesizeBam(): Array[Short] = {
+    val random = new scala.util.Random(2)
+    var phase = 0.0
+    var noise = 0.0
+    synthesize(0.35) { t =>
+      // a low thump falling in pitch under a burst of dull noise
+      val frequency = 45 + 75 * math.exp(-t / 0.05)
+      phase += 2 * math.Pi * frequency / sampleRate
+      noise += (random.nextGaussian() - noise) * 0.1
+      math.sin(phase) * 0.8 * math.exp(-t / 0.12) +
+        noise * 1.5 * math.exp(-t / 0.02)
+    }
+  }
+
+  private def synthesizeWhoosh(): Array[Short] = {
+    val random = new scala.util.Random(3)
+    val seconds = 0.4
+    var noise = 0.0
+    synthesize(seconds) { t =>
+      // noise through a low pass that opens and closes again
+      val swell = math.pow(math.sin(math.Pi * t / seconds), 2)
+      noise += (random.nextGaussian() - noise) * (0.02 + 0.2 * swell)
+      noise * 1.5 * swell
+    }
+  }
+}
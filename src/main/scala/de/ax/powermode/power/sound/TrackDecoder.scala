@@ -0,0 +1,113 @@
+package de.ax.powermode.power.sound
+
+import javazoom.jl.decoder.{Bitstream, Decoder, SampleBuffer}
+
+import java.io.{BufferedInputStream, File, FileInputStream}
+
+object TrackDecoder {
+  // all tracks are converted to this format, so one line can play them all
+  val SampleRate = 44100
+  val Channels = 2
+
+  // upper bound of the samples one MP3 frame is converted to
+  val MaxFrameSamples = 16384
+}
+
+/**
+  * Decodes an MP3 file frame by frame into interleaved stereo samples at
+  * [[TrackDecoder.SampleRate]], converting mono and other sample rates with
+  * linear interpolation. The samples are also handed to `recorder`, which
+  * is committed once the whole track was decoded.
+  */
+class TrackDecoder(val file: File, recorder: Option[PcmCache.Writer] = None)
+    extends TrackSource {
+  import TrackDecoder._
+
+  private val stream = new BufferedInputStream(new FileInputStream(file))
+  private val bitstream = new Bitstream(stream)
+  private val decoder = new Decoder()
+  // read position in source frames, relative to the start of the next
+  // block; -1 refers to the last frame of the previous block
+  private var position = 0.0
+  private var lastLeft = 0
+  private var lastRight = 0
+  private var converted: Array[Short] = null
+  private var finished = false
+
+  /**
+    * Decodes the next MP3 frame into `ring`.
+    */
+  override def decodeInto(ring: PcmRing): Boolean = {
+    val header = bitstream.readFrame()
+    if (header == null) {
+      if (!finished) {
+        finished = true
+        recorder.foreach(_.commit())
+      }
+      false
+    } else {
+      try {
+        val output =
+          decoder.decodeFrame(header, bitstream).asInstanceOf[SampleBuffer]
+        convert(output.getBuffer,
+                output.getBufferLength,
+                decoder.getOutputChannels,
+                decoder.getOutputFrequency,
+                ring)
+      } finally {
+        bitstream.closeFrame()
+      }
+      true
+    }
+  }
+
+  private def convert(buffer: Array[Short],
+                      length: Int,
+                      channels: Int,
+                      sampleRate: Int,
+                      ring: PcmRing): Unit = {
+    if (channels == Channels && sampleRate == SampleRate) {
+      ring.put(buffer, 0, length)
+      recorder.foreach(_.write(buffer, 0, length))
+    } else {
+      if (converted == null) {
+        converted = new Array[Short](MaxFrameSamples)
+      }
+      var n = 0
+      val frames = length / channels
+      val step = sampleRate.toDouble / SampleRate
+      def left(i: Int): Int = if (i < 0) lastLeft else buffer(i * channels)
+      def right(i: Int): Int =
+        if (i < 0) lastRight else buffer(i * channels + channels - 1)
+      var t = position
+      while (t < frames - 1) {
+        val i = math.floor(t).toInt
+        val fraction = t - i
+        converted(n) = (left(i) + (left(i + 1) - left(i)) * fraction).toShort
+        converted(n + 1) =
+          (right(i) + (right(i + 1) - right(i)) * fraction).toShort
+        n += 2
+        t += step
+      }
+      ring.put(converted, 0, n)
+      recorder.foreach(_.write(converted, 0, n))
+      if (frames > 0) {
+        position = t - frames
+        lastLeft = left(frames - 1)
+        lastRight = right(frames - 1)
+      }
+    }
+  }
+
+  override def close(): Unit = {
+    if (!finished) {
+      finished = true
+      recorder.foreach(_.abort())
+    }
+    try {
+      bitstream.close()
+    } finally {
+      stream.close()
+    }
+  }
+}
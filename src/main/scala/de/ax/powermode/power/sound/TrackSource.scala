@@ -0,0 +1,18 @@
+package de.ax.powermode.power.sound
+
+import java.io.File
+
+/**
+  * A track being played, delivering interleaved stereo samples at
+  * [[TrackDecoder.SampleRate]].
+  */
+trait TrackSource extends AutoCloseable {
+  def file: File
+
+  /**
+    * Appends the next samples to `ring`, which needs room for
+    * [[TrackDecoder.MaxFrameSamples]] samples. Returns false at the end of
+    * the track.
+    */
+  def decodeInto(ring: PcmRing): Boolean
+}
@@ -0,0 +1,148 @@
+package de.ax.powermode.recording
+
+import java.io.{DataInputStream, DataOutputStream, EOFException, InputStream}
+import scala.collection.mutable
+
+/**
+  * The binary format of input recordings.
+  *
+  * A recording starts with a magic number, the format version and the
+  * wall clock time it was started at. Each event follows as a kind byte
+  * and then, all as unsigned varints, the milliseconds since the previous
+  * event and the event's fields. A typed character mostly takes 4 bytes.
+  */
+object InputLog {
+  val Magic = 0x504d494c // "PMIL"
+  val Version = 1
+  val Extension = "pmil"
+
+  private val TypedKind = 0
+  private val HotkeyKind = 1
+  private val DocumentChangeKind = 2
+
+  /**
+    * Something recorded, `time` milliseconds after the recording started.
+    */
+  sealed trait Event {
+    def time: Long
+  }
+
+  // a character typed with `carets` carets
+  case class Typed(time: Long, char: Char, carets: Int) extends Event
+
+  // a key stroke of a shortcut, with extended modifiers
+  case class Hotkey(time: Long, keyCode: Int, modifiers: Int) extends Event
+
+  // a document change as seen by the BAM, with the longest line of the
+  // removed and inserted text and the number of carets
+  case class DocumentChange(time: Long,
+                            inserted: Int,
+                            removed: Int,
+                            insertedLines: Int,
+                            removedLines: Int,
+                            longestLine: Int,
+                            carets: Int)
+      extends Event
+
+  case class Recording(startMillis: Long, events: IndexedSeq[Event])
+
+  def writeHeader(out: DataOutputStream, startMillis: Long): Unit = {
+    out.writeInt(Magic)
+    out.writeByte(Version)
+    out.writeLong(startMillis)
+  }
+
+  /**
+    * Writes `event`, which happened after the event at `previousTime`.
+    */
+  def write(out: DataOutputStream, event: Event, previousTime: Long): Unit = {
+    def varint(value: Long): Unit = {
+      var v = value
+      while ((v & ~0x7fL) != 0) {
+        out.writeByte(((v & 0x7f) | 0x80).toInt)
+        v >>>= 7
+      }
+      out.writeByte(v.toInt)
+    }
+    val delta = math.max(event.time - previousTime, 0)
+    event match {
+      case Typed(_, char, carets) =>
+        out.writeByte(TypedKind)
+        varint(delta)
+        varint(char.toLong)
+        varint(carets.toLong)
+      case Hotkey(_, keyCode, modifiers) =>
+        out.writeByte(HotkeyKind)
+        varint(delta)
+        varint(keyCode & 0xffffffffL)
+        varint(modifiers & 0xffffffffL)
+      case DocumentChange(_,
+                          inserted,
+                          removed,
+                          insertedLines,
+                          removedLines,
+                          longestLine,
+                          carets) =>
+        out.writeByte(DocumentChangeKind)
+        varint(delta)
+        Seq(inserted, removed, insertedLines, removedLines, longestLine, carets)
+          .foreach(v => varint(v.toLong))
+    }
+  }
+
+  /**
+    * Reads a recording. A recording that was cut off, e.g. by a crash,
+    * ends with its last complete event.
+    */
+  def read(input: InputStream): Recording = {
+    val in = new DataInputStream(input)
+    if (in.readInt() != Magic) {
+      throw new IllegalArgumentException("not an input recording")
+    }
+    val version = in.readUnsignedByte()
+    if (version != Version) {
+      throw new IllegalArgumentException(
+        s"unsupported recording version $version")
+    }
+    val startMillis = in.readLong()
+    def varint(): Long = {
+      var value = 0L
+      var shift = 0
+      var b = in.readUnsignedByte()
+      while ((b & 0x80) != 0) {
+        value |= (b & 0x7fL) << shift
+        shift += 7
+        b = in.readUnsignedByte()
+      }
+      value | (b.toLong << shift)
+    }
+    val events = mutable.ArrayBuffer.empty[Event]
+    var time = 0L
+    try {
+      var kind = in.read()
+      while (kind >= 0) {
+        time += varint()
+        events += (kind match {
+          case TypedKind =>
+            Typed(time, varint().toChar, varint().toInt)
+          case HotkeyKind =>
+            Hotkey(time, varint().toInt, varint().toInt)
+          case DocumentChangeKind =>
+            DocumentChange(time,
+                           varint().toInt,
+                           varint().toInt,
+                           varint().toInt,
+                           varint().toInt,
+                           varint().toInt,
+                           varint().toInt)
+          case _ =>
+            throw new IllegalArgumentException(s"unknown event kind $kind")
+        })
+        kind = in.read()
+      }
+    } catch {
+      case _: EOFException =>
+    }
+    Recording(startMillis, events.toVector)
+  }
+}
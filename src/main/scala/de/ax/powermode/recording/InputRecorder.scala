@@ -0,0 +1,165 @@
+package de.ax.powermode.recording
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.util.concurrency.AppExecutorUtil
+import de.ax.powermode.PowerMode
+import de.ax.powermode.recording.InputLog._
+
+import java.io.{
+  ByteArrayOutputStream,
+  DataOutputStream,
+  File,
+  FileOutputStream,
+  IOException
+}
+import java.text.SimpleDateFormat
+import java.util.Date
+
+/**
+  * Records the input that drives the effects into an [[InputLog]] in the
+  * IDE's log folder, while input recording is enabled in the settings.
+  *
+  * Events are encoded into a memory buffer on the calling thread, which is
+  * appended to the file on a pooled thread whenever it fills up. A
+  * recording ends, and is written out completely, when recording is
+  * disabled or the IDE shuts down.
+  */
+object InputRecorder {
+  // bytes buffered before they are appended to the file
+  private val flushThreshold = 64 * 1024
+
+  private val writer = AppExecutorUtil
+    .createBoundedApplicationPoolExecutor("Power Mode II input recorder", 1)
+
+  // all guarded by this
+  private val buffer = new ByteArrayOutputStream(flushThreshold)
+  private val out = new DataOutputStream(buffer)
+  private var file = Option.empty[File]
+  private var startMillis = 0L
+  private var lastTime = 0L
+
+  // whether a recording is open, to close it without locking every event
+  @volatile private var recording = false
+
+  def directory: File = new File(PathManager.getLogPath, "power-mode")
+
+  def isRecording: Boolean = {
+    val powerMode = PowerMode.getInstance
+    powerMode != null && powerMode.getIsInputRecordingEnabled
+  }
+
+  def typed(char: Char, carets: Int): Unit = {
+    record(time => Typed(time, char, carets))
+  }
+
+  def hotkey(keyCode: Int, modifiers: Int): Unit = {
+    record(time => Hotkey(time, keyCode, modifiers))
+  }
+
+  def documentChanged(inserted: CharSequence,
+                      removed: CharSequence,
+                      carets: Int): Unit = {
+    if (isRecording) {
+      // measured like the BAM does, over the removed and the inserted text
+      var longestLine = 0
+      var line = 0
+      def lines(text: CharSequence): Int = {
+        var count = 0
+        var i = 0
+        while (i < text.length) {
+          if (text.charAt(i) == '\n') {
+            count += 1
+            line = 0
+          } else {
+            line += 1
+            longestLine = math.max(longestLine, line)
+          }
+          i += 1
+        }
+        count
+      }
+      val removedLines = lines(removed)
+      val insertedLines = lines(inserted)
+      record(
+        time =>
+          DocumentChange(time,
+                         inserted.length,
+                         removed.length,
+                         insertedLines,
+                         removedLines,
+                         longestLine,
+                         carets))
+    } else if (recording) {
+      stop()
+    }
+  }
+
+  private def record(event: Long => Event): Unit = {
+    if (isRecording) {
+      synchronized {
+        val now = System.currentTimeMillis()
+        if (file.isEmpty) {
+          start(now)
+        }
+        val e = event(now - startMillis)
+        try {
+          write(out, e, lastTime)
+        } catch {
+          case x: IOException =>
+            PowerMode.logger.debug("could not record input", x)
+        }
+        lastTime = e.time
+        if (buffer.size >= flushThreshold) {
+          flush()
+        }
+      }
+    } else if (recording) {
+      stop()
+    }
+  }
+
+  private def start(now: Long): Unit = {
+    val name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now))
+    file = Some(new File(directory, s"input-$name.$Extension"))
+    startMillis = now
+    lastTime = 0
+    buffer.reset()
+    writeHeader(out, startMillis)
+    recording = true
+    PowerMode.logger.info(s"recording input to ${file.get}")
+  }
+
+  /**
+    * Ends the current recording, if any, and writes it out.
+    */
+  def stop(): Unit = synchronized {
+    if (file.isDefined) {
+      flush()
+      file = None
+      recording = false
+    }
+  }
+
+  private def flush(): Unit = {
+    val bytes = buffer.toByteArray
+    buffer.reset()
+    file.foreach { f =>
+      writer.execute(() => append(f, bytes))
+    }
+  }
+
+  private def append(file: File, bytes: Array[Byte]): Unit = {
+    try {
+      file.getParentFile.mkdirs()
+      val out = new FileOutputStream(file, true)
+      try {
+        out.write(bytes)
+      } finally {
+        out.close()
+      }
+    } catch {
+      case e: IOException =>
+        PowerMode.logger.debug(s"could not write input recording $file", e)
+    }
+  }
+}